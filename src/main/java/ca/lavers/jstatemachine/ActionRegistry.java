@@ -0,0 +1,88 @@
+package ca.lavers.jstatemachine;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Associates names with the custom {@link Action}s, {@link SpanAction}s, {@link Matcher}s and
+ * {@link ContextInitializer}s used by a {@link StateMachine}, so that it can be saved in binary form with
+ * {@link StateMachine#writeTo(java.io.OutputStream, ActionRegistry)} and loaded again with
+ * {@link StateMachine#load(java.nio.ByteBuffer, ActionRegistry)}.
+ *
+ * When saving, every custom object used by the machine must be registered, using the same
+ * instance that was given to the {@link StateMachineBuilder}. When loading, a registry with the
+ * same names is needed, but the objects may be new instances (such as from a new JVM).
+ * Built-in actions from {@link Actions}, literal matchers and {@link Bytes#range(int, int)}
+ * are saved directly and don't need to be registered.
+ *
+ * @param <T> The type of tokens in the input stream
+ * @param <R> The type of tokens to be returned in the output stream
+ */
+public class ActionRegistry<T, R> {
+
+    private final Map<String, Object> byName = new HashMap<>();
+    private final Map<Object, String> names = new IdentityHashMap<>();
+
+    private ActionRegistry<T, R> register(String name, Object o) {
+        if(byName.containsKey(name)) {
+            throw new IllegalArgumentException("'" + name + "' is already registered");
+        }
+        byName.put(name, o);
+        names.put(o, name);
+        return this;
+    }
+
+    /**
+     * Register a custom action under the given name.
+     */
+    public ActionRegistry<T, R> registerAction(String name, Action<T, R> action) {
+        return register(name, action);
+    }
+
+    /**
+     * Register a custom span action under the given name.
+     */
+    public ActionRegistry<T, R> registerSpanAction(String name, SpanAction<T, R> action) {
+        return register(name, action);
+    }
+
+    /**
+     * Register a custom matcher under the given name.
+     */
+    public ActionRegistry<T, R> registerMatcher(String name, Matcher<T, R> matcher) {
+        return register(name, matcher);
+    }
+
+    /**
+     * Register a context initializer under the given name.
+     */
+    public ActionRegistry<T, R> registerContextInitializer(String name, ContextInitializer<T, R> initializer) {
+        return register(name, initializer);
+    }
+
+    /**
+     * Returns the name an object was registered under.
+     * @throws IllegalArgumentException if it isn't registered
+     */
+    String nameOf(Object o) {
+        String name = names.get(o);
+        if(name == null) {
+            throw new IllegalArgumentException("Unregistered object " + o
+                    + "; all custom actions, matchers and initializers must be registered");
+        }
+        return name;
+    }
+
+    /**
+     * Returns the object registered under the given name.
+     * @throws IllegalArgumentException if nothing is registered under that name, or it is the wrong type
+     */
+    <A> A lookup(String name, Class<A> type) {
+        Object o = byName.get(name);
+        if(!type.isInstance(o)) {
+            throw new IllegalArgumentException("No " + type.getSimpleName() + " registered as '" + name + "'");
+        }
+        return type.cast(o);
+    }
+}
@@ -17,9 +17,9 @@ public class Actions {
      * @param name The name of the state to switch to
      */
     public static <T, R> Action<T, R> state(String name) {
-        return ctx -> {
+        return new BuiltinAction<>(BuiltinAction.STATE, name, ctx -> {
             ctx.setCurrentState(name);
-        };
+        });
     }
 
     /**
@@ -31,13 +31,57 @@ public class Actions {
      * @param message The error message to emit
      */
     public static <T, R> Action<T, R> error(String message) {
-        return ctx -> {
+        return new BuiltinAction<>(BuiltinAction.ERROR, message, ctx -> {
             throw new StateMachineException(message, ctx);
-        };
+        });
+    }
+
+    /**
+     * Causes the current input item to be processed again once the rest of the actions
+     * for the current rule have executed, according to the rules of whatever the current
+     * state is by then. Typically used along with {@link #state(String)} to hand an item
+     * over to another state, such as a keywords state, without consuming it. When used in
+     * an .onEnd() rule, the new state's .onEnd() rule is executed instead.
+     *
+     * Take care to change state first; reprocessing an item in the same state will loop forever.
+     */
+    public static <T, R> Action<T, R> reprocess() {
+        return new BuiltinAction<>(BuiltinAction.REPROCESS, null, ctx -> {
+            ctx.requestReprocess();
+        });
+    }
+
+    /**
+     * Writes the current input character to the output unchanged; see {@link Context#write(char)}.
+     */
+    public static <R> Action<Character, R> copy() {
+        return new BuiltinAction<>(BuiltinAction.COPY, null, ctx -> {
+            ctx.write(ctx.currentItem());
+        });
+    }
+
+    /**
+     * Writes the given characters to the output; see {@link Context#write(CharSequence)}.
+     *
+     * @param chars The characters to write
+     */
+    public static <T, R> Action<T, R> write(CharSequence chars) {
+        String string = chars.toString();
+        return new BuiltinAction<>(BuiltinAction.WRITE, string, ctx -> {
+            ctx.write(string);
+        });
+    }
+
+    /**
+     * Does nothing, discarding the current input item. Equivalent to a rule with no actions,
+     * but clearer when a character transformer removes some characters and copies the rest.
+     */
+    public static <T, R> Action<T, R> drop() {
+        return new BuiltinAction<>(BuiltinAction.DROP, null, ctx -> {});
     }
 
     public static <T, R> Action<T, R> call(String state) {
-        return ctx -> {
+        return new BuiltinAction<>(BuiltinAction.CALL, state, ctx -> {
             List<String> callstack = ctx.get("callstack", List.class);
             if(callstack == null) {
                 callstack = new ArrayList<>();
@@ -45,16 +89,16 @@ public class Actions {
             }
             callstack.add(ctx.currentState());
             ctx.setCurrentState(state);
-        };
+        });
     }
 
     public static <T, R> Action<T, R> ret() {
-        return ctx -> {
+        return new BuiltinAction<>(BuiltinAction.RET, null, ctx -> {
             List<String> callstack = ctx.get("callstack", List.class);
             if (callstack == null || callstack.isEmpty()) {
                 throw new StateMachineException("Cannot return; missing or empty callstack", ctx);
             }
             ctx.setCurrentState(callstack.remove(callstack.size() - 1));
-        };
+        });
     }
 }
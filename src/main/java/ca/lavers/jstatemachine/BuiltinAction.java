@@ -0,0 +1,51 @@
+package ca.lavers.jstatemachine;
+
+/**
+ * One of the built-in actions from {@link Actions}, which remembers which action it is and
+ * its argument so that it can be written out by {@link MachineFormat}.
+ */
+class BuiltinAction<T, R> implements Action<T, R> {
+
+    // Operation codes, as written in the binary format; never renumber these
+    static final int STATE = 0;
+    static final int CALL = 1;
+    static final int RET = 2;
+    static final int ERROR = 3;
+    static final int REPROCESS = 4;
+    static final int COPY = 5;
+    static final int WRITE = 6;
+    static final int DROP = 7;
+
+    final int op;
+    final String argument;
+    private final Action<T, R> action;
+
+    BuiltinAction(int op, String argument, Action<T, R> action) {
+        this.op = op;
+        this.argument = argument;
+        this.action = action;
+    }
+
+    @Override
+    public void execute(Context<T, R> ctx) {
+        action.execute(ctx);
+    }
+
+    /**
+     * Recreates a built-in action from its operation code and argument.
+     */
+    @SuppressWarnings("unchecked")
+    static <T, R> Action<T, R> of(int op, String argument) {
+        switch(op) {
+            case STATE: return Actions.state(argument);
+            case CALL: return Actions.call(argument);
+            case RET: return Actions.ret();
+            case ERROR: return Actions.error(argument);
+            case REPROCESS: return Actions.reprocess();
+            case COPY: return (Action<T, R>) Actions.copy();
+            case WRITE: return Actions.write(argument);
+            case DROP: return Actions.drop();
+            default: throw new IllegalArgumentException("Unknown built-in action " + op);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ca.lavers.jstatemachine;
+
+/**
+ * Matches when the current input byte falls within an inclusive range of unsigned values.
+ *
+ * See {@link Bytes#range(int, int)}
+ */
+class ByteRangeMatcher<R> implements Matcher<Byte, R> {
+    final int low;
+    final int high;
+
+    ByteRangeMatcher(int low, int high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    boolean matches(int b) {
+        return b >= low && b <= high;
+    }
+
+    @Override
+    public boolean matches(Context<Byte, R> ctx) {
+        return matches(ctx.currentItem() & 0xFF);
+    }
+}
@@ -0,0 +1,130 @@
+package ca.lavers.jstatemachine;
+
+import ca.lavers.jstatemachine.streams.ByteTokenStream;
+
+import java.nio.ByteOrder;
+import java.util.function.BiFunction;
+
+/**
+ * A collection of built-in matchers and actions for {@link StateMachine}s that process
+ * binary input from a {@link ByteTokenStream}.
+ *
+ * States whose rules all use byte literals (such as {@code .on((byte) 0x7E, ...)}) or
+ * {@link #range(int, int)} matchers are compiled into a 256-entry lookup table when the
+ * StateMachine is built, so choosing a rule costs the same no matter how many there are.
+ *
+ * The read actions read fields directly from {@link Context#input()}, so they can only be
+ * used when the machine is processing a ByteTokenStream; not when items are fed in through
+ * a {@link Session}, such as by {@link SelectorDriver}.
+ */
+public class Bytes {
+
+    /**
+     * Matches any byte whose unsigned value (0-255) is between low and high, inclusive.
+     */
+    public static <R> Matcher<Byte, R> range(int low, int high) {
+        if(low < 0 || high > 0xFF || low > high) {
+            throw new IllegalArgumentException("Invalid byte range " + low + "-" + high);
+        }
+        return new ByteRangeMatcher<>(low, high);
+    }
+
+    /**
+     * Reads a signed 16-bit field directly from the input stream, immediately following the
+     * current item, and saves it as a Short in the named context attribute. The bytes
+     * read are consumed and will not be processed by any rules.
+     */
+    public static <R> Action<Byte, R> readShort(String attribute, ByteOrder order) {
+        return reading(attribute, (in, ctx) -> in.readShort(order));
+    }
+
+    /**
+     * Reads an unsigned 16-bit field directly from the input stream, immediately following the
+     * current item, and saves it as an Integer (0-65535) in the named context attribute. Use
+     * this rather than {@link #readShort(String, ByteOrder)} for length fields. The bytes read
+     * are consumed and will not be processed by any rules.
+     */
+    public static <R> Action<Byte, R> readUnsignedShort(String attribute, ByteOrder order) {
+        return reading(attribute, (in, ctx) -> in.readUnsignedShort(order));
+    }
+
+    /**
+     * Reads a signed 32-bit field directly from the input stream, immediately following the
+     * current item, and saves it as an Integer in the named context attribute. The bytes
+     * read are consumed and will not be processed by any rules.
+     */
+    public static <R> Action<Byte, R> readInt(String attribute, ByteOrder order) {
+        return reading(attribute, (in, ctx) -> in.readInt(order));
+    }
+
+    /**
+     * Reads an unsigned 32-bit field directly from the input stream, immediately following the
+     * current item, and saves it as a Long (0-4294967295) in the named context attribute. Use
+     * this rather than {@link #readInt(String, ByteOrder)} for length fields. The bytes read
+     * are consumed and will not be processed by any rules.
+     */
+    public static <R> Action<Byte, R> readUnsignedInt(String attribute, ByteOrder order) {
+        return reading(attribute, (in, ctx) -> in.readUnsignedInt(order));
+    }
+
+    /**
+     * Reads a 64-bit field directly from the input stream, immediately following the
+     * current item, and saves it as a Long in the named context attribute. The bytes
+     * read are consumed and will not be processed by any rules.
+     */
+    public static <R> Action<Byte, R> readLong(String attribute, ByteOrder order) {
+        return reading(attribute, (in, ctx) -> in.readLong(order));
+    }
+
+    /**
+     * Reads a block of bytes directly from the input stream, immediately following the
+     * current item, and saves it as a ByteBuffer in the named context attribute. The
+     * length of the block is read from another context attribute, typically saved by an
+     * earlier {@link #readUnsignedShort(String, ByteOrder)} or {@link #readUnsignedInt(String, ByteOrder)}.
+     * The bytes read are consumed and will not be processed by any rules.
+     *
+     * Processing halts with an error if the length is negative or too large for a ByteBuffer.
+     */
+    public static <R> Action<Byte, R> readBytes(String attribute, String lengthAttribute) {
+        return readBytes(attribute, lengthAttribute, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a block of bytes as with {@link #readBytes(String, String)}, but halts with an error
+     * if the length is greater than the given maximum. Since a block read from a channel is
+     * copied into a new buffer of its full length, this should be used to limit how much
+     * memory a length field in untrusted input can make the machine allocate.
+     */
+    public static <R> Action<Byte, R> readBytes(String attribute, String lengthAttribute, int maxLength) {
+        return reading(attribute, (in, ctx) -> {
+            Number length = ctx.get(lengthAttribute, Number.class);
+            if(length == null) {
+                throw new StateMachineException("Missing length attribute '" + lengthAttribute + "'", ctx);
+            }
+            long count = length.longValue();
+            if(count < 0 || count > maxLength) {
+                throw new StateMachineException("Invalid length " + count + " in attribute '" + lengthAttribute + "'", ctx);
+            }
+            return in.readBytes((int) count);
+        });
+    }
+
+    /**
+     * Builds an action that reads a field from the input stream and saves it as an attribute,
+     * halting with an error if the input isn't a ByteTokenStream or ends before the field does.
+     */
+    private static <R> Action<Byte, R> reading(String attribute, BiFunction<ByteTokenStream, Context<Byte, R>, Object> reader) {
+        return ctx -> {
+            TokenStream<Byte> input = ctx.input();
+            if(!(input instanceof ByteTokenStream)) {
+                throw new StateMachineException("Input is not a ByteTokenStream; fields can't be read"
+                        + " when items are fed in through a Session", ctx);
+            }
+            try {
+                ctx.put(attribute, reader.apply((ByteTokenStream) input, ctx));
+            } catch(IllegalStateException e) {
+                throw new StateMachineException(e.getMessage(), ctx);
+            }
+        };
+    }
+}
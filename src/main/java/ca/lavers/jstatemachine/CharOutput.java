@@ -0,0 +1,95 @@
+package ca.lavers.jstatemachine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.function.Consumer;
+
+/**
+ * The output sink used by {@link StateMachine#transform(TokenStream, Appendable)}, which
+ * collects written characters in a reusable buffer and passes them on to an Appendable
+ * in chunks whenever it fills up.
+ */
+class CharOutput implements Consumer<Object> {
+
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Appendable target;
+    private final CharBuffer buffer;
+
+    CharOutput(Appendable target, int bufferSize) {
+        if(bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.target = target;
+        this.buffer = CharBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Writes an emitted item as its string form
+     */
+    @Override
+    public void accept(Object item) {
+        if(item instanceof Character) {
+            write((Character) item);
+        }
+        else if(item instanceof CharSequence) {
+            write((CharSequence) item);
+        }
+        else {
+            write(String.valueOf(item));
+        }
+    }
+
+    void write(char c) {
+        if(!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(c);
+    }
+
+    void write(CharSequence chars) {
+        int length = chars.length();
+        int i = 0;
+        while(i < length) {
+            if(!buffer.hasRemaining()) {
+                flush();
+            }
+            int end = i + Math.min(buffer.remaining(), length - i);
+            if(chars instanceof String) {
+                buffer.put((String) chars, i, end);
+            }
+            else {
+                for(int j = i; j < end; j++) {
+                    buffer.put(chars.charAt(j));
+                }
+            }
+            i = end;
+        }
+    }
+
+    /**
+     * Passes everything in the buffer on to the target. Writers are not flushed themselves.
+     */
+    void flush() {
+        buffer.flip();
+        try {
+            if(target instanceof Writer) {
+                ((Writer) target).write(buffer.array(), 0, buffer.limit());
+            }
+            else if(target instanceof StringBuilder) {
+                ((StringBuilder) target).append(buffer.array(), 0, buffer.limit());
+            }
+            else if(target instanceof CharBuffer) {
+                ((CharBuffer) target).put(buffer);
+            }
+            else {
+                target.append(buffer);
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,31 @@
+package ca.lavers.jstatemachine;
+
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Receives the output of a {@link StateMachine} for a single channel registered
+ * with a {@link SelectorDriver}.
+ *
+ * @param <R> The type of tokens emitted by the state machine
+ */
+public interface ConnectionHandler<R> {
+
+    /**
+     * Called for each item emitted by the state machine while processing the channel's input.
+     */
+    void onItem(SelectableChannel channel, R item);
+
+    /**
+     * Called once the channel's input has ended and its .onEnd() rules have executed
+     * successfully. The channel has been closed by the time this is called.
+     */
+    default void onEnd(SelectableChannel channel) {}
+
+    /**
+     * Called if processing fails, with a {@link StateMachineException} from an error action,
+     * an IOException while reading, or any other exception thrown while processing the
+     * channel's input (including by this handler). The channel has been closed by the time
+     * this is called.
+     */
+    default void onError(SelectableChannel channel, Exception e) {}
+}
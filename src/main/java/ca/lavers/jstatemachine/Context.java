@@ -1,9 +1,12 @@
 package ca.lavers.jstatemachine;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Tracks data and state related to a specific stream processing operation by
@@ -19,17 +22,54 @@ public class Context<T, R> {
     private T currentItem;
     private int currentPosition = -1;
 
-    private List<R> outputBuffer = new ArrayList<>();
+    private final TokenStream<T> input;
+    private final Consumer<? super R> output;
 
     private final Map<String, Object> attributes = new HashMap<>();
 
     private StateMachineException thrownException = null;
+    private boolean lightweightErrors = false;
+
+    // Position within a KeywordState's trie, and whether the current item should be
+    // processed again after the machine has moved to a new state
+    private int keywordNode = 0;
+    private boolean reprocess = false;
+
+    // Earlier items to be processed again, with their positions, before the next input item;
+    // the items a keywords state consumed before its match failed; and the position of the
+    // last input item, once the input has ended
+    private final ArrayDeque<Replayed<T>> replay = new ArrayDeque<>();
+    private List<T> keywordItems = Collections.emptyList();
+    private int endPosition = -1;
+
+    // Per-session match caches, indexed by state ID; see StateMachineBuilder.setMatchCache()
+    private MatchCache[] matchCaches;
+
+    /**
+     * Creates a new Context with the specified initial state, which will read from
+     * the given input stream (if any) and pass emitted items to the given output sink
+     */
+    Context(String initialState, TokenStream<T> input, Consumer<? super R> output) {
+        currentState = initialState;
+        this.input = input;
+        this.output = output;
+    }
 
     /**
-     * Creates a new Context with the specified initial state
+     * Clears everything in this Context so that it can be reused for another processing
+     * operation, starting in the given state
      */
-    Context(String initialState) {
+    void reset(String initialState) {
         currentState = initialState;
+        currentItem = null;
+        currentPosition = -1;
+        attributes.clear();
+        thrownException = null;
+        keywordNode = 0;
+        reprocess = false;
+        replay.clear();
+        keywordItems = Collections.emptyList();
+        endPosition = -1;
     }
 
     /**
@@ -62,6 +102,16 @@ public class Context<T, R> {
         currentItem = item;
     }
 
+    /**
+     * Returns the stream that input items are being read from, or null if items are
+     * being fed in by another source (such as the previous stage of a fused machine).
+     * Actions may read ahead from this stream directly; any items they read will not
+     * be processed by the StateMachine's rules.
+     */
+    public TokenStream<T> input() {
+        return input;
+    }
+
     /**
      * Increment the current position counter
      */
@@ -70,12 +120,27 @@ public class Context<T, R> {
     }
 
     /**
-     * Resets the current position counter
+     * Advance the current position counter past a number of items at once
+     */
+    void advancePosition(int count) {
+        this.currentPosition += count;
+    }
+
+    /**
+     * Resets the current position counter, once the input has ended
      */
     void clearPosition() {
+        this.endPosition = this.currentPosition;
         this.currentPosition = -1;
     }
 
+    /**
+     * Returns the position of the last input item, once the input has ended
+     */
+    int endPosition() {
+        return endPosition;
+    }
+
     /**
      * Returns the position of the current item in the input stream
      */
@@ -87,16 +152,39 @@ public class Context<T, R> {
      * Sends the given item to the output stream
      */
     public void emit(R item) {
-        outputBuffer.add(item);
+        output.accept(item);
     }
 
     /**
-     * Returns the contents of the internal output buffer and clears it
+     * Writes a character to the output. When transforming with
+     * {@link StateMachine#transform(TokenStream, Appendable)}, it goes straight into the output
+     * buffer; otherwise it is emitted as a Character, which must then be the output type.
      */
-    List<R> getOutputBufferAndClear() {
-        List<R> r = outputBuffer;
-        this.outputBuffer = new ArrayList<>();
-        return r;
+    @SuppressWarnings("unchecked")
+    public void write(char c) {
+        if(output instanceof CharOutput) {
+            ((CharOutput) output).write(c);
+        }
+        else {
+            emit((R) Character.valueOf(c));
+        }
+    }
+
+    /**
+     * Writes a sequence of characters to the output. When transforming with
+     * {@link StateMachine#transform(TokenStream, Appendable)}, they're copied straight into the
+     * output buffer; otherwise each is emitted as a Character, which must then be the output type.
+     */
+    @SuppressWarnings("unchecked")
+    public void write(CharSequence chars) {
+        if(output instanceof CharOutput) {
+            ((CharOutput) output).write(chars);
+        }
+        else {
+            for(int i = 0; i < chars.length(); i++) {
+                emit((R) Character.valueOf(chars.charAt(i)));
+            }
+        }
     }
 
     /**
@@ -154,6 +242,107 @@ public class Context<T, R> {
         return attributes.remove(key);
     }
 
+    int getKeywordNode() {
+        return keywordNode;
+    }
+
+    void setKeywordNode(int node) {
+        this.keywordNode = node;
+    }
+
+    /**
+     * During the onFail() actions of a keywords state, returns the items it had consumed
+     * before finding that they don't match any keyword. The item that caused the failure is
+     * not included. All of them will be processed again by the fail state once the fail
+     * actions have executed, after which this is empty again.
+     */
+    public List<T> keywordItems() {
+        return keywordItems;
+    }
+
+    void setKeywordItems(List<T> items) {
+        this.keywordItems = items;
+    }
+
+    /**
+     * Queues items to be processed again, in order, once the current actions have executed
+     * and before any further input; the last of them is at the given position.
+     */
+    void replay(List<T> items, int lastPosition) {
+        for(int i = items.size() - 1; i >= 0; i--) {
+            replay.addFirst(new Replayed<>(items.get(i), lastPosition--));
+        }
+    }
+
+    /**
+     * Makes the next queued item the current one, returning false if there are none
+     */
+    boolean nextReplayed() {
+        Replayed<T> next = replay.poll();
+        if(next == null) {
+            return false;
+        }
+        currentItem = next.item;
+        currentPosition = next.position;
+        return true;
+    }
+
+    boolean hasReplayed() {
+        return !replay.isEmpty();
+    }
+
+    /**
+     * Requests that the current item (or end of input) be processed again in the
+     * new current state once the current actions have executed
+     */
+    void requestReprocess() {
+        this.reprocess = true;
+    }
+
+    /**
+     * Returns true if reprocessing was requested, and clears the request
+     */
+    boolean takeReprocess() {
+        boolean r = reprocess;
+        reprocess = false;
+        return r;
+    }
+
+    /**
+     * Returns this Context's own match cache for the given state, creating it if necessary
+     */
+    MatchCache matchCache(int stateId, int capacity) {
+        if(matchCaches == null || matchCaches.length <= stateId) {
+            matchCaches = Arrays.copyOf(matchCaches == null ? new MatchCache[0] : matchCaches, stateId + 1);
+        }
+        MatchCache cache = matchCaches[stateId];
+        if(cache == null) {
+            cache = matchCaches[stateId] = new MatchCache(capacity);
+        }
+        return cache;
+    }
+
+    /**
+     * Called internally to choose whether errors should omit stack traces and this Context
+     */
+    void setLightweightErrors(boolean lightweightErrors) {
+        this.lightweightErrors = lightweightErrors;
+    }
+
+    boolean hasLightweightErrors() {
+        return lightweightErrors;
+    }
+
+    private static class Replayed<T> {
+        final T item;
+        final int position;
+
+        Replayed(T item, int position) {
+            this.item = item;
+            this.position = position;
+        }
+    }
+
     /**
      * Called internally to indicate that processing has failed with the given error
      */
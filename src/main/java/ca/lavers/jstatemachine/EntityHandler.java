@@ -0,0 +1,31 @@
+package ca.lavers.jstatemachine;
+
+/**
+ * Receives the output of a {@link StateMachine} for the entities tracked by a
+ * {@link KeyedStateMachine}. Calls for a given entity are never made concurrently,
+ * but calls for different entities may be. Calls are made once the event that caused
+ * them has been fully processed, so they may dispatch further events.
+ *
+ * @param <R> The type of tokens emitted by the state machine
+ */
+public interface EntityHandler<R> {
+
+    /**
+     * Called for each item emitted by the state machine while processing an event for the given
+     * entity, once the event has been processed.
+     */
+    void onItem(long key, R item);
+
+    /**
+     * Called once an entity has finished, either by reaching a final state or by
+     * {@link KeyedStateMachine#end(long)}, and has been evicted.
+     */
+    default void onEnd(long key) {}
+
+    /**
+     * Called when processing fails for an entity with a {@link StateMachineException}
+     * from an error action. The entity has been evicted by the time this is called. The
+     * exception is always lightweight, so it has no stack trace or Context.
+     */
+    default void onError(long key, StateMachineException e) {}
+}
@@ -0,0 +1,54 @@
+package ca.lavers.jstatemachine;
+
+/**
+ * Describes why a StateMachine halted processing, as returned by
+ * {@link StreamProcessor#tryProcess(TokenStream, java.util.function.Consumer)}.
+ */
+public class Failure {
+    private final String message;
+    private final int position;
+    private final String state;
+    private final Context<?, ?> ctx;
+
+    Failure(String message, int position, String state, Context<?, ?> ctx) {
+        this.message = message;
+        this.position = position;
+        this.state = state;
+        this.ctx = ctx;
+    }
+
+    /**
+     * Returns the error message given to the error(message) action.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the position in the input stream where the error occurred, or -1 if it
+     * occurred after the end of the input.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the name of the state the StateMachine was in when the error occurred.
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * Returns the Context at the point of the error, or null if the error was lightweight, which
+     * is always the case for a Failure returned by tryProcess().
+     */
+    public Context<?, ?> getContext() {
+        return ctx;
+    }
+
+    @Override
+    public String toString() {
+        return message + (position >= 0 ? " at position " + position : "") + " in state " + state;
+    }
+}
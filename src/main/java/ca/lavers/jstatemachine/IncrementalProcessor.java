@@ -0,0 +1,277 @@
+package ca.lavers.jstatemachine;
+
+import java.util.*;
+
+/**
+ * Processes a text document with a {@link StateMachine}, and keeps the output up to date as
+ * the document is edited without processing the whole document again each time; for example,
+ * to run a machine as a lexer in an editor.
+ *
+ * While processing, a checkpoint is recorded every few characters, holding the current state,
+ * the call stack used by {@link Actions#call(String)} and the values of any declared
+ * attributes, along with how much output had been produced. After an edit, processing
+ * restarts from the last checkpoint before the edit, and stops as soon as the machine is
+ * back in exactly the same situation as it was at a checkpoint after the edit; the rest of the
+ * output is then the same as before, and is reused. The cost of an edit is therefore usually
+ * proportional to the size of the edit, rather than the size of the document.
+ *
+ * This only works if everything that affects how later characters are processed is captured
+ * by a checkpoint. Any attributes that carry information from one character to the next must
+ * be declared, and are compared with equals(). Other attributes are set up afresh by the
+ * machine's context initializer whenever processing restarts from a checkpoint, and are not
+ * restored. Since output after a convergence point is reused as-is, output items should not
+ * include absolute positions, which may have shifted.
+ *
+ * A checkpoint holds the attribute values themselves, not copies, so a declared attribute
+ * must be replaced with a new value rather than changed in place. A mutable buffer such as a
+ * StringBuilder that actions append to (as in the TestMachine example) does not work: every
+ * checkpoint ends up sharing the same buffer, so restarting from one sees its later contents,
+ * and convergence is judged against them, which produces wrong output after an edit. Such a
+ * machine should keep its buffer in an immutable value, such as a String, instead.
+ *
+ * @param <R> The type of tokens to be returned in the output stream
+ */
+public class IncrementalProcessor<R> {
+
+    private static final String CALLSTACK = "callstack";
+
+    private final StateMachine<Character, R> machine;
+    private final int interval;
+    private final String[] attributes;
+
+    private final StringBuilder text = new StringBuilder();
+    private final List<R> output = new ArrayList<>();
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+    private boolean failed = false;
+
+    /**
+     * Create an IncrementalProcessor for the given StateMachine
+     *
+     * @param machine The StateMachine to process documents with
+     * @param interval The number of characters between checkpoints; smaller intervals mean less
+     *                 work after each edit, but more memory used for checkpoints
+     * @param attributes The names of the context attributes to save in each checkpoint
+     */
+    public IncrementalProcessor(StateMachine<Character, R> machine, int interval, String... attributes) {
+        if(interval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        this.machine = machine;
+        this.interval = interval;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Process a whole new document, replacing any previous one.
+     *
+     * @param document The text to process
+     * @return The output for the document; see {@link #output()}
+     * @throws StateMachineException when an error(message) action is executed
+     */
+    public List<R> process(CharSequence document) throws StateMachineException {
+        text.setLength(0);
+        text.append(document);
+        output.clear();
+        checkpoints.clear();
+
+        Context<Character, R> ctx = machine.newContext(null, item -> {});
+        machine.getContextInitializer().initialize(ctx);
+        checkpoints.add(snapshot(ctx, 0, 0));
+        run(0, 1, 0);
+        return output();
+    }
+
+    /**
+     * Replace part of the document, and update the output to match.
+     *
+     * @param start The index of the first character to replace
+     * @param end The index after the last character to replace; equal to start for an insertion
+     * @param replacement The new text; empty for a deletion
+     * @return The output for the edited document; see {@link #output()}
+     * @throws StateMachineException when an error(message) action is executed
+     * @throws IndexOutOfBoundsException if the range isn't within the document
+     */
+    public List<R> edit(int start, int end, CharSequence replacement) throws StateMachineException {
+        if(start < 0 || end < start || end > text.length()) {
+            throw new IndexOutOfBoundsException("Invalid range " + start + "-" + end + " for length " + text.length());
+        }
+        text.replace(start, end, replacement.toString());
+
+        // Restart from the last checkpoint that only depends on text before the edit, and
+        // look for convergence with the checkpoints that only depend on text after it. If the
+        // last run failed, the old output doesn't reach the error, so there's no tail to reuse.
+        int restart = indexAtOrBefore(start);
+        int candidates = failed ? checkpoints.size() : Math.max(restart, indexAtOrBefore(end - 1)) + 1;
+        run(restart, candidates, replacement.length() - (end - start));
+        return output();
+    }
+
+    /**
+     * Returns the output for the current document. This is a read-only view, which reflects
+     * later edits.
+     */
+    public List<R> output() {
+        return Collections.unmodifiableList(output);
+    }
+
+    /**
+     * Returns the current document.
+     */
+    public CharSequence text() {
+        return text;
+    }
+
+    /**
+     * Returns the number of checkpoints currently recorded.
+     */
+    public int checkpointCount() {
+        return checkpoints.size();
+    }
+
+    /**
+     * Returns the index of the last checkpoint at or before the given position
+     */
+    private int indexAtOrBefore(int position) {
+        int low = 0;
+        int high = checkpoints.size() - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(checkpoints.get(mid).position <= position) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Processes the text from the checkpoint at the given index, until either the machine converges
+     * with one of the checkpoints from the given candidate index onwards (whose positions are offset
+     * by delta in the current text) or the text runs out, and splices the new output and checkpoints
+     * in with the old ones.
+     */
+    private void run(int restart, int candidates, int delta) throws StateMachineException {
+        Checkpoint from = checkpoints.get(restart);
+        List<R> produced = new ArrayList<>();
+        Context<Character, R> ctx = machine.newContext(null, produced::add);
+        from.restore(ctx);
+
+        List<Checkpoint> recorded = new ArrayList<>();
+        int next = candidates;
+        int last = from.position;
+        Checkpoint converged = null;
+        for(int i = from.position; i < text.length() && !ctx.isFailed(); i++) {
+            while(next < checkpoints.size() && checkpoints.get(next).position + delta < i) {
+                next++;
+            }
+            boolean candidate = next < checkpoints.size() && checkpoints.get(next).position + delta == i;
+            if(i > from.position && (candidate || i - last >= interval)) {
+                Checkpoint cp = snapshot(ctx, i, from.outputIndex + produced.size());
+                if(candidate && cp.sameStateAs(checkpoints.get(next))) {
+                    converged = checkpoints.get(next);
+                    break;
+                }
+                recorded.add(cp);
+                last = i;
+            }
+            machine.processItem(ctx, text.charAt(i));
+        }
+        if(converged == null && !ctx.isFailed()) {
+            machine.finish(ctx);
+        }
+
+        // Output up to the restart point is unchanged, and so is everything after the
+        // convergence point (if any), although the checkpoints there have moved
+        int tail = output.size();
+        int tailCheckpoints = checkpoints.size();
+        if(converged != null) {
+            tail = converged.outputIndex;
+            tailCheckpoints = next;
+            int shift = from.outputIndex + produced.size() - converged.outputIndex;
+            for(Checkpoint cp : checkpoints.subList(next, checkpoints.size())) {
+                cp.position += delta;
+                cp.outputIndex += shift;
+            }
+        }
+        splice(output, from.outputIndex, tail, produced);
+        splice(checkpoints, restart + 1, tailCheckpoints, recorded);
+
+        failed = ctx.isFailed();
+        if(failed) {
+            throw ctx.getThrownException();
+        }
+    }
+
+    /**
+     * Replaces a range of a list with new items, moving the items after it no more than necessary
+     */
+    private static <E> void splice(List<E> list, int from, int to, List<E> items) {
+        int common = Math.min(to - from, items.size());
+        for(int i = 0; i < common; i++) {
+            list.set(from + i, items.get(i));
+        }
+        if(common < items.size()) {
+            list.addAll(from + common, items.subList(common, items.size()));
+        }
+        else {
+            list.subList(from + common, to).clear();
+        }
+    }
+
+    private Checkpoint snapshot(Context<Character, R> ctx, int position, int outputIndex) {
+        Object[] values = new Object[attributes.length + 1];
+        List<?> callstack = ctx.get(CALLSTACK, List.class);
+        values[0] = callstack == null || callstack.isEmpty() ? null : new ArrayList<>(callstack);
+        for(int i = 0; i < attributes.length; i++) {
+            values[i + 1] = ctx.get(attributes[i]);
+        }
+        return new Checkpoint(position, ctx.currentState(), ctx.getKeywordNode(), values, outputIndex);
+    }
+
+    /**
+     * The situation of the machine before processing the character at a given position
+     */
+    private class Checkpoint {
+        int position;
+        final String state;
+        final int keywordNode;
+        final Object[] values;  // The call stack, followed by the declared attributes
+        int outputIndex;
+
+        Checkpoint(int position, String state, int keywordNode, Object[] values, int outputIndex) {
+            this.position = position;
+            this.state = state;
+            this.keywordNode = keywordNode;
+            this.values = values;
+            this.outputIndex = outputIndex;
+        }
+
+        boolean sameStateAs(Checkpoint other) {
+            return state.equals(other.state) && keywordNode == other.keywordNode
+                    && Arrays.equals(values, other.values);
+        }
+
+        void restore(Context<Character, R> ctx) {
+            ctx.reset(machine.getInitialState());
+            machine.getContextInitializer().initialize(ctx);
+            ctx.setCurrentState(state);
+            ctx.setKeywordNode(keywordNode);
+            ctx.advancePosition(position);
+            restore(ctx, CALLSTACK, values[0] == null ? null : new ArrayList<>((List<?>) values[0]));
+            for(int i = 0; i < attributes.length; i++) {
+                restore(ctx, attributes[i], values[i + 1]);
+            }
+        }
+
+        private void restore(Context<Character, R> ctx, String attribute, Object value) {
+            if(value != null) {
+                ctx.put(attribute, value);
+            }
+            else {
+                ctx.remove(attribute);
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package ca.lavers.jstatemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a separate instance of a {@link StateMachine} for each of a very large number of
+ * entities (such as orders, sessions or devices), identified by a long key. Events for
+ * all entities are fed in through {@link #dispatch(long, Object)}, in any interleaving,
+ * and each is processed by the machine instance for its key as if it were the next
+ * item in that entity's own input stream.
+ *
+ * Rather than keeping a {@link Context} for every entity, only the ID of its current
+ * state and the values of a fixed set of declared attributes are stored, in flat arrays.
+ * When an event arrives, a reusable Context is loaded with the entity's state and
+ * attributes, the event is processed, and the results are stored again. Any attributes
+ * that weren't declared are discarded after each event, so declare every attribute the
+ * machine's actions need to keep between events (including "callstack", if
+ * {@link Actions#call(String)} is used). {@link Context#currentPosition()} is not
+ * tracked per entity.
+ *
+ * Entities are spread over a number of independently locked stripes, so events for
+ * different entities can be dispatched concurrently from many threads. An entity is
+ * created by its first event, and evicted when it moves to one of the final states,
+ * when {@link #end(long)} or {@link #evict(long)} is called, or when processing fails.
+ *
+ * Items emitted while processing an event are collected, and passed to the
+ * {@link EntityHandler} once the entity's new state has been stored (or it has been
+ * evicted), so the handler may dispatch further events from its callbacks, even for the
+ * same entity. Errors are always reported as lightweight {@link StateMachineException}s,
+ * since the Context they would refer to is reused for the next event.
+ *
+ * @param <T> The type of events
+ * @param <R> The type of tokens emitted by the state machine
+ */
+public class KeyedStateMachine<T, R> {
+
+    private final StateMachine<T, R> machine;
+    private final EntityHandler<R> handler;
+    private final String[] attributes;
+    private final List<Stripe> stripes;
+    private final int stripeShift;
+    private boolean[] finalStates;
+
+    /**
+     * Creates a runtime with a number of stripes suitable for the available processors.
+     *
+     * @param machine The StateMachine to run for each entity
+     * @param handler The handler that will receive the output for all entities
+     * @param attributes The names of the context attributes to keep for each entity between events
+     */
+    public KeyedStateMachine(StateMachine<T, R> machine, EntityHandler<R> handler, String... attributes) {
+        this(machine, handler, Runtime.getRuntime().availableProcessors() * 4, attributes);
+    }
+
+    /**
+     * @param machine The StateMachine to run for each entity
+     * @param handler The handler that will receive the output for all entities
+     * @param stripes The number of independently locked partitions of entities; rounded up to a power of two
+     * @param attributes The names of the context attributes to keep for each entity between events
+     */
+    public KeyedStateMachine(StateMachine<T, R> machine, EntityHandler<R> handler, int stripes, String... attributes) {
+        this.machine = machine;
+        this.handler = handler;
+        this.attributes = attributes.clone();
+        int count = Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1;
+        this.stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+        this.stripes = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            this.stripes.add(new Stripe());
+        }
+        this.finalStates = new boolean[machine.getStates().size()];
+    }
+
+    /**
+     * Declare states in which an entity is finished. When an event leaves an entity in one of
+     * these states, its .onEnd() rule is executed and it is evicted. Should be called before
+     * any events are dispatched.
+     *
+     * @param states The names of the final states
+     */
+    public KeyedStateMachine<T, R> setFinalStates(String... states) {
+        boolean[] f = new boolean[finalStates.length];
+        for(String state : states) {
+            f[machine.stateId(state)] = true;
+        }
+        this.finalStates = f;
+        return this;
+    }
+
+    /**
+     * Process an event for the entity with the given key, creating the entity (in the
+     * machine's initial state) if this is its first event.
+     */
+    public void dispatch(long key, T event) {
+        stripeFor(key).dispatch(key, event);
+    }
+
+    /**
+     * Finish the entity with the given key, executing the .onEnd() rule of its current
+     * state and then evicting it. Does nothing if there is no such entity.
+     */
+    public void end(long key) {
+        stripeFor(key).end(key);
+    }
+
+    /**
+     * Evict the entity with the given key without executing any rules.
+     * @return True if there was such an entity
+     */
+    public boolean evict(long key) {
+        return stripeFor(key).evict(key);
+    }
+
+    /**
+     * Returns true if there is currently an entity with the given key.
+     */
+    public boolean contains(long key) {
+        return stripeFor(key).stateOf(key) != null;
+    }
+
+    /**
+     * Returns the name of the current state of the entity with the given key, or null if there is no such entity.
+     */
+    public String stateOf(long key) {
+        return stripeFor(key).stateOf(key);
+    }
+
+    /**
+     * Returns the number of entities currently being tracked.
+     */
+    public long size() {
+        long size = 0;
+        for(Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    // Murmur3 finalizer, so that sequential keys are spread evenly over stripes and slots
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Stripe stripeFor(long key) {
+        return stripes.size() == 1 ? stripes.get(0) : stripes.get((int) (hash(key) >>> stripeShift));
+    }
+
+    /**
+     * A partition of the entities, stored in an open-addressing hash table with linear probing.
+     * An entity's state ID, keyword position and attribute values are kept in parallel arrays
+     * (attributes flattened, so each entity's occupy a fixed-size run of slots); a state ID of
+     * -1 marks an empty slot.
+     */
+    private class Stripe {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private int[] states = newStates(INITIAL_CAPACITY);
+        private int[] nodes = new int[INITIAL_CAPACITY];
+        private Object[] values = new Object[INITIAL_CAPACITY * attributes.length];
+        private int size = 0;
+
+        // Reused for every event processed in this stripe; items emitted are collected in
+        // pending until the event's results have been stored, and spare is kept for next time
+        private List<R> pending = new ArrayList<>();
+        private List<R> spare = new ArrayList<>();
+        private final Context<T, R> ctx = machine.newContext(null, item -> pending.add(item));
+
+        Stripe() {
+            ctx.setLightweightErrors(true);
+        }
+
+        private int[] newStates(int capacity) {
+            int[] s = new int[capacity];
+            Arrays.fill(s, -1);
+            return s;
+        }
+
+        private int mask() {
+            return keys.length - 1;
+        }
+
+        private int home(long key) {
+            return (int) hash(key) & mask();
+        }
+
+        private int find(long key) {
+            for(int i = home(key); ; i = (i + 1) & mask()) {
+                if(states[i] < 0 || keys[i] == key) {
+                    return i;
+                }
+            }
+        }
+
+        synchronized void dispatch(long key, T event) {
+            int slot = find(key);
+            boolean isNew = states[slot] < 0;
+            ctx.reset(isNew ? machine.getInitialState() : machine.stateName(states[slot]));
+            if(isNew) {
+                machine.getContextInitializer().initialize(ctx);
+            }
+            else {
+                load(slot);
+            }
+
+            machine.processItem(ctx, event);
+
+            if(ctx.isFailed()) {
+                if(!isNew) {
+                    remove(slot);
+                }
+                StateMachineException error = ctx.getThrownException();
+                deliver(key);
+                handler.onError(key, error);
+                return;
+            }
+            int state = machine.stateId(ctx.currentState());
+            if(finalStates[state]) {
+                if(!isNew) {
+                    remove(slot);
+                }
+                finish(key);
+                return;
+            }
+            if(isNew) {
+                slot = insert(key);
+            }
+            store(slot, state);
+            deliver(key);
+        }
+
+        synchronized void end(long key) {
+            int slot = find(key);
+            if(states[slot] < 0) {
+                return;
+            }
+            ctx.reset(machine.stateName(states[slot]));
+            load(slot);
+            remove(slot);
+            finish(key);
+        }
+
+        /**
+         * Executes the end rules for the entity currently loaded in the context, which has already been evicted
+         */
+        private void finish(long key) {
+            machine.finish(ctx);
+            StateMachineException error = ctx.isFailed() ? ctx.getThrownException() : null;
+            deliver(key);
+            if(error != null) {
+                handler.onError(key, error);
+            }
+            else {
+                handler.onEnd(key);
+            }
+        }
+
+        /**
+         * Passes the items emitted for the given entity to the handler. This happens after the
+         * Context is finished with, so the handler may dispatch further events to this stripe,
+         * which collect their own items while these are being passed on.
+         */
+        private void deliver(long key) {
+            if(pending.isEmpty()) {
+                return;
+            }
+            List<R> items = pending;
+            pending = spare != null ? spare : new ArrayList<>();
+            spare = null;
+            for(R item : items) {
+                handler.onItem(key, item);
+            }
+            items.clear();
+            spare = items;
+        }
+
+        synchronized boolean evict(long key) {
+            int slot = find(key);
+            if(states[slot] < 0) {
+                return false;
+            }
+            remove(slot);
+            return true;
+        }
+
+        synchronized String stateOf(long key) {
+            int slot = find(key);
+            return states[slot] < 0 ? null : machine.stateName(states[slot]);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private void load(int slot) {
+            ctx.setKeywordNode(nodes[slot]);
+            int base = slot * attributes.length;
+            for(int a = 0; a < attributes.length; a++) {
+                if(values[base + a] != null) {
+                    ctx.put(attributes[a], values[base + a]);
+                }
+            }
+        }
+
+        private void store(int slot, int state) {
+            states[slot] = state;
+            nodes[slot] = ctx.getKeywordNode();
+            int base = slot * attributes.length;
+            for(int a = 0; a < attributes.length; a++) {
+                values[base + a] = ctx.get(attributes[a]);
+            }
+        }
+
+        private int insert(long key) {
+            if((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int slot = find(key);
+            keys[slot] = key;
+            size++;
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldStates = states;
+            int[] oldNodes = nodes;
+            Object[] oldValues = values;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            states = newStates(capacity);
+            nodes = new int[capacity];
+            values = new Object[capacity * attributes.length];
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldStates[i] >= 0) {
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    states[slot] = oldStates[i];
+                    nodes[slot] = oldNodes[i];
+                    System.arraycopy(oldValues, i * attributes.length, values, slot * attributes.length, attributes.length);
+                }
+            }
+        }
+
+        /**
+         * Removes the entity in the given slot, shifting back any later entities in the same
+         * probe sequence so that lookups never need to skip over deleted slots.
+         */
+        private void remove(int slot) {
+            int gap = slot;
+            for(int i = (slot + 1) & mask(); states[i] >= 0; i = (i + 1) & mask()) {
+                int h = home(keys[i]);
+                // Move the entity at i into the gap unless its home lies cyclically within (gap, i]
+                boolean stays = gap <= i ? (h > gap && h <= i) : (h > gap || h <= i);
+                if(!stays) {
+                    move(i, gap);
+                    gap = i;
+                }
+            }
+            states[gap] = -1;
+            nodes[gap] = 0;
+            Arrays.fill(values, gap * attributes.length, (gap + 1) * attributes.length, null);
+            size--;
+        }
+
+        private void move(int from, int to) {
+            keys[to] = keys[from];
+            states[to] = states[from];
+            nodes[to] = nodes[from];
+            System.arraycopy(values, from * attributes.length, values, to * attributes.length, attributes.length);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package ca.lavers.jstatemachine;
+
+import java.util.*;
+
+/**
+ * A state that matches its input against a fixed set of keywords (sequences of literal
+ * items), compiled into a trie stored in a few flat arrays.
+ *
+ * Nodes are numbered breadth-first, so the children of each node are numbered consecutively
+ * and in the same order as its edges; edge k therefore always leads to node k + 1, and
+ * only the edge symbols need to be stored. Each node costs 12 bytes: its first edge,
+ * the symbol on the edge leading to it, and the keyword (if any) that ends there.
+ *
+ * Keywords are matched one item at a time, looking for the longest match. When an item
+ * completes a keyword that no other keyword extends, that keyword's actions run and the
+ * machine moves to the match state. When an item can't extend the current match, the
+ * machine backs up to the longest keyword completed along the way: its actions run, the
+ * machine moves to the match state, and the items after it (including the current one)
+ * are processed again there. If no keyword was completed, the fail actions run, the
+ * machine moves to the fail state, and all the items consumed so far (including the current
+ * one) are processed again there; while the fail actions run, the items consumed before the
+ * current one are also available from {@link Context#keywordItems()}. So if "ab" and "abcd"
+ * are both keywords, the input "abcx" matches "ab" and then "c" and "x" are processed by the
+ * match state, while with only "for" as a keyword, the input "fox" is processed entirely by
+ * the fail state.
+ *
+ * Only the current node is kept in the Context while matching; the items consumed so far
+ * are recovered from the path to it when they're needed.
+ *
+ * See {@link StateMachineBuilder#keywords(String)}
+ */
+class KeywordState<T, R> extends State<T, R> {
+
+    private final String name;
+
+    // Keywords as they were added, with the index of their actions; used only while building
+    private List<List<T>> pending = new ArrayList<>();
+    private List<Integer> pendingActions = new ArrayList<>();
+    private final List<List<Action<T, R>>> keywordActions = new ArrayList<>();
+
+    private String matchState;
+    private String failState;
+    private List<Action<T, R>> failActions = Collections.emptyList();
+    private List<Action<T, R>> failExit = Collections.emptyList();  // failActions, then clears keywordItems
+
+    // Compiled trie. Edges of node n are firstEdge[n] (inclusive) to firstEdge[n + 1]
+    // (exclusive), sorted by symbol; terminal[n] is the index into keywordActions of the
+    // keyword ending at node n, or -1
+    private int[] firstEdge;
+    private int[] edgeSymbol;
+    private int[] terminal;
+
+    // Symbols are character values when every keyword is made of Characters, which avoids
+    // a lookup per item; otherwise each distinct item is assigned a symbol number
+    private boolean characters;
+    private Map<T, Integer> alphabet;
+    private Object[] symbolItems;  // The item for each symbol, when there is an alphabet
+
+    KeywordState(String name) {
+        this.name = name;
+    }
+
+    void addKeyword(List<T> keyword, Action<T, R>[] actions) {
+        addKeyword(keyword, Arrays.asList(actions));
+    }
+
+    void addKeyword(List<T> keyword, List<Action<T, R>> actions) {
+        if(keyword.isEmpty()) {
+            throw new IllegalArgumentException("Keywords must not be empty");
+        }
+        if(keywordActions.isEmpty() || keywordActions.get(keywordActions.size() - 1) != actions) {
+            keywordActions.add(actions);
+        }
+        pending.add(keyword);
+        pendingActions.add(keywordActions.size() - 1);
+    }
+
+    void setMatchState(String state) {
+        this.matchState = state;
+    }
+
+    void setFailState(String state, Action<T, R>[] actions) {
+        this.failState = state;
+        this.failActions = Arrays.asList(actions);
+        this.failExit = new ArrayList<>(failActions);
+        this.failExit.add(ctx -> ctx.setKeywordItems(Collections.emptyList()));
+    }
+
+    @Override
+    void addRule(Matcher<T, R> matcher, Action<T, R>[] actions) {
+        throw new IllegalStateException("'" + name + "' is a keywords state and can't have rules");
+    }
+
+    @Override
+    void compile(int id, int matchCacheSize, boolean sharedMatchCache) {
+        setId(id);
+        if(matchState == null || failState == null) {
+            throw new IllegalStateException("Keywords state '" + name + "' needs both a match and a fail state");
+        }
+        if(failState.equals(name)) {
+            throw new IllegalStateException("Keywords state '" + name + "' can't be its own fail state");
+        }
+        if(pending == null) {
+            return;  // Already compiled
+        }
+
+        characters = pending.stream().allMatch(k -> k.stream().allMatch(i -> i instanceof Character));
+        alphabet = characters ? null : new HashMap<>();
+
+        // Convert each keyword to symbols, and sort them so that every node of the trie
+        // corresponds to a contiguous range of keywords sharing the node's prefix
+        int count = pending.size();
+        int[][] keys = new int[count][];
+        int totalSymbols = 0;
+        for(int k = 0; k < count; k++) {
+            List<T> keyword = pending.get(k);
+            keys[k] = new int[keyword.size()];
+            for(int i = 0; i < keys[k].length; i++) {
+                T item = keyword.get(i);
+                keys[k][i] = characters ? (Character) item : alphabet.computeIfAbsent(item, x -> alphabet.size());
+            }
+            totalSymbols += keys[k].length;
+        }
+        Integer[] sorted = new Integer[count];
+        for(int k = 0; k < count; k++) {
+            sorted[k] = k;
+        }
+        // Stable, so a keyword added more than once keeps the actions it was given last
+        Arrays.sort(sorted, (x, y) -> Arrays.compare(keys[x], keys[y]));
+
+        // Create nodes breadth-first; each node is processed in the order it was created, and
+        // its children are created in symbol order, so edge k always leads to node k + 1
+        int maxNodes = totalSymbols + 1;
+        int[] lo = new int[maxNodes], hi = new int[maxNodes], depth = new int[maxNodes];
+        int[] first = new int[maxNodes + 1], symbols = new int[maxNodes], ends = new int[maxNodes];
+        int nodes = 1;
+        hi[0] = count;
+        for(int n = 0; n < nodes; n++) {
+            int i = lo[n], d = depth[n];
+            ends[n] = -1;
+            while(i < hi[n] && keys[sorted[i]].length == d) {
+                ends[n] = pendingActions.get(sorted[i++]);
+            }
+            first[n] = nodes - 1;
+            while(i < hi[n]) {
+                int symbol = keys[sorted[i]][d];
+                int j = i;
+                while(j < hi[n] && keys[sorted[j]][d] == symbol) {
+                    j++;
+                }
+                symbols[nodes - 1] = symbol;
+                lo[nodes] = i;
+                hi[nodes] = j;
+                depth[nodes] = d + 1;
+                nodes++;
+                i = j;
+            }
+        }
+        first[nodes] = nodes - 1;
+
+        firstEdge = Arrays.copyOf(first, nodes + 1);
+        edgeSymbol = Arrays.copyOf(symbols, nodes - 1);
+        terminal = Arrays.copyOf(ends, nodes);
+        pending = null;
+        pendingActions = null;
+        indexAlphabet();
+    }
+
+    private void indexAlphabet() {
+        if(alphabet != null) {
+            symbolItems = new Object[alphabet.size()];
+            alphabet.forEach((item, symbol) -> symbolItems[symbol] = item);
+        }
+    }
+
+    String getMatchState() {
+        return matchState;
+    }
+
+    String getFailState() {
+        return failState;
+    }
+
+    List<Action<T, R>> getFailActions() {
+        return failActions;
+    }
+
+    List<List<Action<T, R>>> getKeywordActions() {
+        return keywordActions;
+    }
+
+    /**
+     * Returns the alphabet mapping items to symbols, or null if symbols are character values
+     */
+    Map<T, Integer> getAlphabet() {
+        return alphabet;
+    }
+
+    int[] getFirstEdge() {
+        return firstEdge;
+    }
+
+    int[] getEdgeSymbol() {
+        return edgeSymbol;
+    }
+
+    int[] getTerminal() {
+        return terminal;
+    }
+
+    /**
+     * Installs a trie that was already compiled, as read by {@link MachineFormat}, in place of
+     * any keywords that have been added.
+     */
+    void setCompiled(Map<T, Integer> alphabet, List<List<Action<T, R>>> keywordActions,
+                     int[] firstEdge, int[] edgeSymbol, int[] terminal) {
+        this.characters = alphabet == null;
+        this.alphabet = alphabet;
+        this.keywordActions.clear();
+        this.keywordActions.addAll(keywordActions);
+        this.firstEdge = firstEdge;
+        this.edgeSymbol = edgeSymbol;
+        this.terminal = terminal;
+        this.pending = null;
+        this.pendingActions = null;
+        indexAlphabet();
+    }
+
+    /**
+     * Returns the node reached by following the edge from the given node for the given item, or -1.
+     */
+    private int step(int node, T item) {
+        int symbol;
+        if(characters) {
+            if(!(item instanceof Character)) {
+                return -1;
+            }
+            symbol = (Character) item;
+        }
+        else {
+            Integer s = alphabet.get(item);
+            if(s == null) {
+                return -1;
+            }
+            symbol = s;
+        }
+        int e = Arrays.binarySearch(edgeSymbol, firstEdge[node], firstEdge[node + 1], symbol);
+        return e >= 0 ? e + 1 : -1;
+    }
+
+    private boolean isLeaf(int node) {
+        return firstEdge[node] == firstEdge[node + 1];
+    }
+
+    /**
+     * Returns the parent of the given node (other than the root). Since edge k leads to node
+     * k + 1 and edges are numbered in node order, that is the last node whose edges start at
+     * or before edge n - 1.
+     */
+    private int parent(int node) {
+        int edge = node - 1;
+        int low = 0;
+        int high = firstEdge.length - 2;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(firstEdge[mid] <= edge) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the item on the edge leading to the given node
+     */
+    @SuppressWarnings("unchecked")
+    private T itemAt(int node) {
+        int symbol = edgeSymbol[node - 1];
+        return characters ? (T) Character.valueOf((char) symbol) : (T) symbolItems[symbol];
+    }
+
+    /**
+     * Returns the last count items on the path to the given node, in order
+     */
+    private List<T> path(int node, int count) {
+        List<T> items = new ArrayList<>(count + 1);
+        for(int i = 0; i < count; i++, node = parent(node)) {
+            items.add(itemAt(node));
+        }
+        Collections.reverse(items);
+        return items;
+    }
+
+    @Override
+    List<Action<T, R>> actionsFor(Context<T, R> ctx) {
+        int node = ctx.getKeywordNode();
+        int next = step(node, ctx.currentItem());
+        if(next >= 0) {
+            if(terminal[next] >= 0 && isLeaf(next)) {
+                ctx.setKeywordNode(0);
+                ctx.setCurrentState(matchState);
+                return keywordActions.get(terminal[next]);
+            }
+            ctx.setKeywordNode(next);
+            return Collections.emptyList();
+        }
+        return backUp(ctx, node, false);
+    }
+
+    @Override
+    List<Action<T, R>> getEndActions(Context<T, R> ctx) {
+        int node = ctx.getKeywordNode();
+        if(node == 0) {
+            // Input ended before any keyword was started, so there was no failed match
+            ctx.setCurrentState(failState);
+            ctx.requestReprocess();
+            return Collections.emptyList();
+        }
+        return backUp(ctx, node, true);
+    }
+
+    /**
+     * Ends a match that can't go past the given node, leaving this state for the match state if
+     * a keyword was completed on the way to it, or the fail state otherwise. Items after the
+     * keyword (or every item consumed, if there was none) are handed back to be processed again,
+     * followed by the current item (or the end of the input). Returns the actions to execute on
+     * the way out.
+     */
+    private List<Action<T, R>> backUp(Context<T, R> ctx, int node, boolean ended) {
+        int match = node;
+        int unmatched = 0;
+        while(match != 0 && terminal[match] < 0) {
+            match = parent(match);
+            unmatched++;
+        }
+        ctx.setKeywordNode(0);
+
+        List<T> items = unmatched == 0 ? Collections.emptyList() : path(node, unmatched);
+        List<Action<T, R>> actions;
+        if(match == 0) {
+            ctx.setKeywordItems(items);
+            ctx.setCurrentState(failState);
+            actions = failExit;
+        }
+        else {
+            ctx.setCurrentState(matchState);
+            actions = keywordActions.get(terminal[match]);
+        }
+
+        if(unmatched == 0) {
+            ctx.requestReprocess();
+        }
+        else if(ended) {
+            ctx.replay(items, ctx.endPosition());
+        }
+        else {
+            List<T> replayed = new ArrayList<>(items);
+            replayed.add(ctx.currentItem());
+            ctx.replay(replayed, ctx.currentPosition());
+        }
+        return actions;
+    }
+}
@@ -0,0 +1,19 @@
+package ca.lavers.jstatemachine;
+
+/**
+ * The default {@link Matcher} for .on() rules; matches when the current input item
+ * .equals() a literal object. Rules using this matcher can be recognized when a
+ * StateMachine is built so that faster lookups can be used for them.
+ */
+class LiteralMatcher<T, R> implements Matcher<T, R> {
+    final Object literal;
+
+    LiteralMatcher(Object literal) {
+        this.literal = literal;
+    }
+
+    @Override
+    public boolean matches(Context<T, R> ctx) {
+        return ctx.currentItem().equals(literal);
+    }
+}
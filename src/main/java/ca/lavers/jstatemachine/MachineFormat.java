@@ -0,0 +1,430 @@
+package ca.lavers.jstatemachine;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Reads and writes the binary form of a {@link StateMachine}; see
+ * {@link StateMachine#writeTo(OutputStream, ActionRegistry)}.
+ *
+ * All values are big-endian. The file starts with a magic number and a format version,
+ * followed by the machine's settings and then each of its states. Strings are written as
+ * a length (-1 for null) followed by UTF-8 bytes, and int arrays as a length followed by
+ * their elements, so that they can be copied out of a mapped file in bulk.
+ *
+ * Reading checks every length against the bytes remaining and the shape of each keyword trie,
+ * so a truncated or corrupt buffer is rejected with an IllegalArgumentException rather than
+ * failing partway through, or later while processing input.
+ */
+class MachineFormat {
+
+    static final int MAGIC = 0x4A534D42;  // "JSMB"
+    static final int VERSION = 1;
+
+    // State kinds
+    private static final int REGULAR = 0;
+    private static final int KEYWORDS = 1;
+
+    // Matcher kinds
+    private static final int LITERAL = 0;
+    private static final int BYTE_RANGE = 1;
+    private static final int NAMED_MATCHER = 2;
+
+    // Action kinds; built-in actions are followed by their operation code
+    private static final int BUILTIN = 0;
+    private static final int NAMED_ACTION = 1;
+
+    // Literal types
+    private static final int CHARACTER = 'C';
+    private static final int BYTE = 'B';
+    private static final int SHORT = 'S';
+    private static final int INTEGER = 'I';
+    private static final int LONG = 'J';
+    private static final int BOOLEAN = 'Z';
+    private static final int STRING = 'T';
+
+    private MachineFormat() {}
+
+    // ---- Writing ----
+
+    static <T, R> void write(StateMachine<T, R> machine, ActionRegistry<T, R> registry, OutputStream os) throws IOException {
+        Writer<T, R> w = new Writer<>(new DataOutputStream(os), registry);
+        w.out.writeInt(MAGIC);
+        w.out.writeShort(VERSION);
+        w.out.writeBoolean(machine.hasLightweightErrors());
+        ContextInitializer<T, R> init = machine.getContextInitializer();
+        w.string(init == StateMachine.NO_INITIALIZER ? null : registry.nameOf(init));
+        w.string(machine.getInitialState());
+
+        Map<String, State<T, R>> states = machine.getStates();
+        w.out.writeInt(states.size());
+        for(Map.Entry<String, State<T, R>> entry : states.entrySet()) {
+            w.string(entry.getKey());
+            State<T, R> state = entry.getValue();
+            if(state instanceof KeywordState) {
+                w.out.writeByte(KEYWORDS);
+                w.keywords((KeywordState<T, R>) state);
+            }
+            else {
+                w.out.writeByte(REGULAR);
+                w.regular(state);
+            }
+        }
+        w.out.flush();
+    }
+
+    private static class Writer<T, R> {
+        final DataOutputStream out;
+        final ActionRegistry<T, R> registry;
+
+        Writer(DataOutputStream out, ActionRegistry<T, R> registry) {
+            this.out = out;
+            this.registry = registry;
+        }
+
+        void regular(State<T, R> state) throws IOException {
+            out.writeInt(state.getMatchCacheSize());
+            out.writeBoolean(state.hasSharedMatchCache());
+            out.writeBoolean(state.isUnordered());
+            List<Rule<T, R>> rules = state.getRules();
+            out.writeInt(rules.size());
+            for(Rule<T, R> rule : rules) {
+                matcher(rule.matcher);
+                actions(rule.actions);
+            }
+            actions(state.getOtherwiseActions());
+            actions(state.getEndActions(null));
+            out.writeLong(state.getTimeoutMillis());
+            actions(state.getTimeoutActions());
+            SpanAction<T, R> spanAction = state.getSpanAction();
+            string(spanAction == null ? null : registry.nameOf(spanAction));
+            if(state.isUnordered()) {
+                ints(state.getRuleOrder());
+            }
+        }
+
+        void keywords(KeywordState<T, R> state) throws IOException {
+            string(state.getMatchState());
+            string(state.getFailState());
+            actions(state.getFailActions());
+            Map<T, Integer> alphabet = state.getAlphabet();
+            out.writeBoolean(alphabet != null);
+            if(alphabet != null) {
+                out.writeInt(alphabet.size());
+                for(Map.Entry<T, Integer> symbol : alphabet.entrySet()) {
+                    literal(symbol.getKey());
+                    out.writeInt(symbol.getValue());
+                }
+            }
+            out.writeInt(state.getKeywordActions().size());
+            for(List<Action<T, R>> actions : state.getKeywordActions()) {
+                actions(actions);
+            }
+            ints(state.getFirstEdge());
+            ints(state.getEdgeSymbol());
+            ints(state.getTerminal());
+        }
+
+        void matcher(Matcher<T, R> matcher) throws IOException {
+            if(matcher instanceof LiteralMatcher) {
+                out.writeByte(LITERAL);
+                literal(((LiteralMatcher<T, R>) matcher).literal);
+            }
+            else if(matcher instanceof ByteRangeMatcher) {
+                out.writeByte(BYTE_RANGE);
+                out.writeByte(((ByteRangeMatcher<?>) matcher).low);
+                out.writeByte(((ByteRangeMatcher<?>) matcher).high);
+            }
+            else {
+                out.writeByte(NAMED_MATCHER);
+                string(registry.nameOf(matcher));
+            }
+        }
+
+        void actions(List<Action<T, R>> actions) throws IOException {
+            out.writeInt(actions.size());
+            for(Action<T, R> action : actions) {
+                if(action instanceof BuiltinAction) {
+                    out.writeByte(BUILTIN);
+                    out.writeByte(((BuiltinAction<T, R>) action).op);
+                    string(((BuiltinAction<T, R>) action).argument);
+                }
+                else {
+                    out.writeByte(NAMED_ACTION);
+                    string(registry.nameOf(action));
+                }
+            }
+        }
+
+        void literal(Object literal) throws IOException {
+            if(literal instanceof Character) {
+                out.writeByte(CHARACTER);
+                out.writeChar((Character) literal);
+            }
+            else if(literal instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) literal);
+            }
+            else if(literal instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) literal);
+            }
+            else if(literal instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) literal);
+            }
+            else if(literal instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) literal);
+            }
+            else if(literal instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) literal);
+            }
+            else if(literal instanceof String) {
+                out.writeByte(STRING);
+                string((String) literal);
+            }
+            else {
+                throw new IllegalArgumentException("Can't save literal of type " + literal.getClass().getName()
+                        + "; use a registered Matcher instead");
+            }
+        }
+
+        void string(String s) throws IOException {
+            if(s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void ints(int[] values) throws IOException {
+            out.writeInt(values.length);
+            for(int v : values) {
+                out.writeInt(v);
+            }
+        }
+    }
+
+    // ---- Reading ----
+
+    static <T, R> StateMachine<T, R> read(ByteBuffer buffer, ActionRegistry<T, R> registry) {
+        Reader<T, R> r = new Reader<>(buffer.duplicate().order(ByteOrder.BIG_ENDIAN), registry);
+        try {
+            return read(r);
+        } catch(BufferUnderflowException e) {
+            throw new IllegalArgumentException("Saved StateMachine is truncated", e);
+        } catch(IllegalStateException e) {
+            // Thrown when compiling a state whose saved settings don't make sense
+            throw new IllegalArgumentException("Saved StateMachine is corrupt: " + e.getMessage(), e);
+        }
+    }
+
+    private static <T, R> StateMachine<T, R> read(Reader<T, R> r) {
+        if(r.in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a saved StateMachine");
+        }
+        int version = r.in.getShort();
+        if(version != VERSION) {
+            throw new IllegalArgumentException("Unsupported StateMachine format version " + version);
+        }
+        boolean lightweightErrors = r.in.get() != 0;
+        String initName = r.string();
+        ContextInitializer<T, R> init = initName == null
+                ? StateMachine.noInitializer()
+                : r.registry.lookup(initName, ContextInitializer.class);
+        String initialState = r.string();
+
+        int count = r.length(1);
+        Map<String, State<T, R>> states = new HashMap<>();
+        for(int i = 0; i < count; i++) {
+            String name = r.string();
+            int kind = r.in.get();
+            State<T, R> state;
+            switch(kind) {
+                case REGULAR: state = r.regular(i); break;
+                case KEYWORDS: state = r.keywords(name, i); break;
+                default: throw new IllegalArgumentException("Unknown state kind " + kind);
+            }
+            if(name == null || states.put(name, state) != null) {
+                throw new IllegalArgumentException("Missing or duplicate state name " + name);
+            }
+        }
+        if(!states.containsKey(initialState)) {
+            throw new IllegalArgumentException("No such initial state: " + initialState);
+        }
+        return new StateMachine<>(states, initialState, init, lightweightErrors);
+    }
+
+    private static class Reader<T, R> {
+        final ByteBuffer in;
+        final ActionRegistry<T, R> registry;
+
+        Reader(ByteBuffer in, ActionRegistry<T, R> registry) {
+            this.in = in;
+            this.registry = registry;
+        }
+
+        State<T, R> regular(int id) {
+            State<T, R> state = new State<>();
+            int matchCacheSize = in.getInt();
+            boolean sharedMatchCache = in.get() != 0;
+            boolean unordered = in.get() != 0;
+            state.setUnordered(unordered);
+            int rules = length(1);
+            for(int i = 0; i < rules; i++) {
+                Matcher<T, R> matcher = matcher();
+                state.addRule(matcher, actions());
+            }
+            state.setOtherwiseActions(actions());
+            state.setEndActions(actions());
+            long timeout = in.getLong();
+            state.setTimeout(timeout, actions());
+            String spanAction = string();
+            if(spanAction != null) {
+                state.setSpanAction(registry.lookup(spanAction, SpanAction.class));
+            }
+            state.compile(id, matchCacheSize, sharedMatchCache);
+            if(unordered) {
+                state.setRuleOrder(ints());
+            }
+            return state;
+        }
+
+        State<T, R> keywords(String name, int id) {
+            KeywordState<T, R> state = new KeywordState<>(name);
+            state.setMatchState(string());
+            state.setFailState(string(), actions());
+            Map<T, Integer> alphabet = null;
+            if(in.get() != 0) {
+                int size = length(1);
+                alphabet = new HashMap<>();
+                for(int i = 0; i < size; i++) {
+                    alphabet.put(literal(), in.getInt());
+                }
+            }
+            int lists = length(Integer.BYTES);
+            List<List<Action<T, R>>> keywordActions = new ArrayList<>(lists);
+            for(int i = 0; i < lists; i++) {
+                keywordActions.add(Arrays.asList(actions()));
+            }
+            int[] firstEdge = ints(), edgeSymbol = ints(), terminal = ints();
+            checkTrie(name, alphabet, lists, firstEdge, edgeSymbol, terminal);
+            state.setCompiled(alphabet, keywordActions, firstEdge, edgeSymbol, terminal);
+            state.compile(id, 0, false);
+            return state;
+        }
+
+        /**
+         * Checks that a trie read from the buffer has the shape {@link KeywordState} expects, so
+         * that matching against it can't fail later on
+         */
+        private void checkTrie(String name, Map<T, Integer> alphabet, int keywords,
+                               int[] firstEdge, int[] edgeSymbol, int[] terminal) {
+            int nodes = terminal.length;
+            boolean valid = nodes > 0 && firstEdge.length == nodes + 1 && edgeSymbol.length == nodes - 1
+                    && firstEdge[0] == 0 && firstEdge[nodes] == nodes - 1;
+            for(int n = 0; valid && n < nodes; n++) {
+                valid = firstEdge[n] <= firstEdge[n + 1] && terminal[n] >= -1 && terminal[n] < keywords;
+            }
+            int symbols = alphabet == null ? Character.MAX_VALUE + 1 : alphabet.size();
+            for(int e = 0; valid && e < edgeSymbol.length; e++) {
+                valid = edgeSymbol[e] >= 0 && edgeSymbol[e] < symbols;
+            }
+            if(alphabet != null) {
+                valid = valid && alphabet.values().stream().allMatch(s -> s >= 0 && s < symbols);
+            }
+            if(!valid) {
+                throw new IllegalArgumentException("Corrupt keywords state '" + name + "'");
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Matcher<T, R> matcher() {
+            int kind = in.get();
+            switch(kind) {
+                case LITERAL: return new LiteralMatcher<>(literal());
+                case BYTE_RANGE: return (Matcher<T, R>) new ByteRangeMatcher<R>(in.get() & 0xFF, in.get() & 0xFF);
+                case NAMED_MATCHER: return registry.lookup(string(), Matcher.class);
+                default: throw new IllegalArgumentException("Unknown matcher kind " + kind);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Action<T, R>[] actions() {
+            int count = length(2);
+            Action<T, R>[] actions = new Action[count];
+            for(int i = 0; i < count; i++) {
+                int kind = in.get();
+                if(kind == BUILTIN) {
+                    int op = in.get();
+                    actions[i] = BuiltinAction.of(op, string());
+                }
+                else if(kind == NAMED_ACTION) {
+                    actions[i] = registry.lookup(string(), Action.class);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown action kind " + kind);
+                }
+            }
+            return actions;
+        }
+
+        @SuppressWarnings("unchecked")
+        T literal() {
+            int type = in.get();
+            switch(type) {
+                case CHARACTER: return (T) Character.valueOf(in.getChar());
+                case BYTE: return (T) Byte.valueOf(in.get());
+                case SHORT: return (T) Short.valueOf(in.getShort());
+                case INTEGER: return (T) Integer.valueOf(in.getInt());
+                case LONG: return (T) Long.valueOf(in.getLong());
+                case BOOLEAN: return (T) Boolean.valueOf(in.get() != 0);
+                case STRING: return (T) string();
+                default: throw new IllegalArgumentException("Unknown literal type " + type);
+            }
+        }
+
+        String string() {
+            int length = in.getInt();
+            if(length == -1) {
+                return null;
+            }
+            checkLength(length, 1);
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int[] ints() {
+            int[] values = new int[length(Integer.BYTES)];
+            in.asIntBuffer().get(values);
+            in.position(in.position() + values.length * Integer.BYTES);
+            return values;
+        }
+
+        /**
+         * Reads the number of elements that follow, each taking up at least the given number of
+         * bytes, checking that there's room for them in what's left of the buffer
+         */
+        int length(int minBytes) {
+            return checkLength(in.getInt(), minBytes);
+        }
+
+        private int checkLength(int length, int minBytes) {
+            if(length < 0 || length > in.remaining() / minBytes) {
+                throw new IllegalArgumentException("Saved StateMachine is corrupt; invalid length " + length);
+            }
+            return length;
+        }
+    }
+}
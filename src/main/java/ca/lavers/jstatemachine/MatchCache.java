@@ -0,0 +1,48 @@
+package ca.lavers.jstatemachine;
+
+/**
+ * A bounded cache from input items to the index of the rule they match in a single state.
+ * It is direct-mapped: each item can only be stored in one slot, chosen by its hash code,
+ * and replaces whatever was there before. Entries are immutable, so the cache is safe to
+ * share between threads without locking; the worst a race can do is lose an entry.
+ */
+class MatchCache {
+
+    static final int MISS = -2;
+
+    private static final class Entry {
+        final Object item;
+        final int rule;
+
+        Entry(Object item, int rule) {
+            this.item = item;
+            this.rule = rule;
+        }
+    }
+
+    private final Entry[] entries;
+    private final int mask;
+
+    MatchCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.entries = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    private int slot(Object item) {
+        int h = item.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the cached rule index for the given item, or {@link #MISS} if it isn't cached.
+     */
+    int get(Object item) {
+        Entry e = entries[slot(item)];
+        return e != null && e.item.equals(item) ? e.rule : MISS;
+    }
+
+    void put(Object item, int rule) {
+        entries[slot(item)] = new Entry(item, rule);
+    }
+}
@@ -1,5 +1,7 @@
 package ca.lavers.jstatemachine;
 
+import java.util.function.Predicate;
+
 /**
  * A Matcher function is executed each time an .on() rule for which it is defined
  * is considered. If the matcher returns true, that rule is chosen to be executed.
@@ -14,4 +16,17 @@ package ca.lavers.jstatemachine;
 @FunctionalInterface
 public interface Matcher<T, R> {
     boolean matches(Context<T, R> ctx);
+
+    /**
+     * Creates a Matcher that depends only on the current input item. If every rule in a state
+     * uses pure matchers (or plain literals), the StateMachine can remember which rule each
+     * item matched and skip testing them again the next time it sees the same item; see
+     * {@link StateMachineBuilder#setMatchCache(int, boolean)}. This is worthwhile for
+     * expensive matchers, such as regular expressions or dictionary lookups.
+     *
+     * @param predicate The test to apply to the current input item
+     */
+    static <T, R> Matcher<T, R> pure(Predicate<? super T> predicate) {
+        return new PureMatcher<>(predicate);
+    }
 }
@@ -0,0 +1,73 @@
+package ca.lavers.jstatemachine;
+
+import ca.lavers.jstatemachine.streams.StringStream;
+
+import java.util.function.Consumer;
+
+/**
+ * Two {@link StreamProcessor}s fused into one; every item emitted by the first is fed
+ * directly into the second, without passing through an intermediate {@link TokenStream}.
+ *
+ * See {@link StreamProcessor#then(StreamProcessor)}
+ *
+ * @param <T> The type of tokens in the input stream
+ * @param <M> The type of tokens passed between the two stages
+ * @param <R> The type of tokens to be returned in the output stream
+ */
+class Pipeline<T, M, R> extends StreamProcessor<T, R> {
+
+    private final StreamProcessor<T, M> first;
+    private final StreamProcessor<M, R> second;
+
+    Pipeline(StreamProcessor<T, M> first, StreamProcessor<M, R> second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    Session<T, R> newSession(TokenStream<T> input, Consumer<? super R> sink, TimingWheel wheel) {
+        final Session<M, R> downstream = second.newSession(null, sink, wheel);
+        final Session<T, M> upstream = first.newSession(input, downstream::feed, wheel);
+
+        Session<T, R> session = new Session<T, R>() {
+            @Override
+            public void feed(T item) {
+                upstream.feed(item);
+            }
+
+            @Override
+            public void end() {
+                upstream.end();
+                if(!upstream.isFailed()) {
+                    downstream.end();
+                }
+            }
+
+            @Override
+            boolean feedSpan(StringStream stream) {
+                return upstream.feedSpan(stream);
+            }
+
+            @Override
+            void useLightweightErrors() {
+                upstream.useLightweightErrors();
+                downstream.useLightweightErrors();
+            }
+
+            @Override
+            public void cancel() {
+                upstream.cancel();
+                downstream.cancel();
+            }
+
+            @Override
+            public StateMachineException failure() {
+                StateMachineException e = upstream.failure();
+                return e != null ? e : downstream.failure();
+            }
+        };
+        upstream.setTimeoutListener(session::timedOut);
+        downstream.setTimeoutListener(session::timedOut);
+        return session;
+    }
+}
@@ -0,0 +1,22 @@
+package ca.lavers.jstatemachine;
+
+import java.util.function.Predicate;
+
+/**
+ * A {@link Matcher} that depends only on the current input item. Since its result
+ * for a given item never changes, it can be memoized.
+ *
+ * See {@link Matcher#pure(Predicate)}
+ */
+class PureMatcher<T, R> implements Matcher<T, R> {
+    private final Predicate<? super T> predicate;
+
+    PureMatcher(Predicate<? super T> predicate) {
+        this.predicate = predicate;
+    }
+
+    @Override
+    public boolean matches(Context<T, R> ctx) {
+        return predicate.test(ctx.currentItem());
+    }
+}
@@ -0,0 +1,290 @@
+package ca.lavers.jstatemachine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a single {@link StateMachine} (or fused {@link StreamProcessor}) over many
+ * non-blocking channels (such as SocketChannels) from one thread, using a {@link Selector}.
+ * Each registered channel gets its own {@link Session}; whenever a channel becomes readable,
+ * whatever bytes are available are read into a buffer shared by all channels and fed to that
+ * channel's session, and any emitted items are passed to the channel's
+ * {@link ConnectionHandler}. When a channel's input ends or processing fails, the
+ * channel is closed.
+ *
+ * Since input is fed to the machine as it arrives rather than read from a stream,
+ * {@link Context#input()} is null, and actions that read directly from it (such as the
+ * field and block readers in {@link Bytes}) can't be used with this driver; they halt
+ * processing with an error. This is deliberate: a field can be split across reads, and
+ * the driver can't wait for the rest of it without blocking every other channel. Machines
+ * run by this driver should match multi-byte fields one byte at a time with their rules,
+ * for example collecting the bytes of a length field in an attribute; the byte dispatch
+ * tables make that cheap. The {@link Bytes} readers remain available when processing a
+ * {@link ca.lavers.jstatemachine.streams.ByteTokenStream} with {@link StreamProcessor#process(TokenStream)}.
+ *
+ * If the driver is given a {@link TimingWheel}, each channel's session is started with it,
+ * so that .after() rules can be used for idle timeouts and the like; the driver advances
+ * the wheel every time it polls, and wakes up at least once per tick to do so. If a
+ * timeout's actions end in an error, the channel is closed and its handler notified
+ * straight away. The wheel should not be shared with another thread.
+ *
+ * Any unexpected exception thrown while processing a channel's input or timeouts, such as
+ * a RuntimeException from a custom action or from the channel's {@link ConnectionHandler},
+ * fails only that channel; it is closed and passed to the handler's onError(), and the
+ * other channels carry on.
+ *
+ * {@link #register} and {@link #close()} may be called from any thread; {@link #run()}
+ * and {@link #poll(long)} should only be called from one. Each channel's session is
+ * started on that thread too, when its registration takes effect, so the machine's context
+ * initializer runs there and the timing wheel is only ever touched by it. To spread
+ * connections over several threads, use one driver per thread.
+ *
+ * @param <R> The type of tokens emitted by the state machine
+ */
+public class SelectorDriver<R> implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final StreamProcessor<Byte, R> machine;
+    private final Selector selector;
+    private final ByteBuffer buffer;
+    private final TimingWheel wheel;
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public SelectorDriver(StreamProcessor<Byte, R> machine) throws IOException {
+        this(machine, DEFAULT_BUFFER_SIZE);
+    }
+
+    public SelectorDriver(StreamProcessor<Byte, R> machine, int bufferSize) throws IOException {
+        this(machine, bufferSize, null);
+    }
+
+    /**
+     * @param machine The StateMachine or fused StreamProcessor to run for each channel
+     * @param bufferSize The size of the buffer input is read into
+     * @param wheel The timing wheel that will drive the .after() rules of every channel's session, or null
+     */
+    public SelectorDriver(StreamProcessor<Byte, R> machine, int bufferSize, TimingWheel wheel) throws IOException {
+        this.machine = machine;
+        this.selector = Selector.open();
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.wheel = wheel;
+    }
+
+    /**
+     * Start processing input from the given channel, which will be switched to non-blocking
+     * mode. Registration takes effect, and the channel's session is started, the next time
+     * the driver polls.
+     *
+     * @param channel The channel to read input bytes from
+     * @param handler The handler that will receive output items from this channel
+     */
+    public <C extends SelectableChannel & ReadableByteChannel> void register(C channel, ConnectionHandler<R> handler) {
+        connections.incrementAndGet();
+        pending.add(new Connection(channel, handler));
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the number of channels currently being processed, including any pending registration.
+     */
+    public int connectionCount() {
+        return selector.isOpen() ? connections.get() : 0;
+    }
+
+    /**
+     * Processes channels until this driver is closed.
+     */
+    public void run() throws IOException {
+        while(selector.isOpen()) {
+            poll(0);
+        }
+    }
+
+    /**
+     * Waits for at least one registered channel to become readable (or for the timeout to
+     * expire, or for a new channel to be registered) and processes the available input
+     * from every readable channel. If the driver has a timing wheel, it is then advanced,
+     * and the wait is limited to one tick.
+     *
+     * @param timeoutMillis The maximum time to wait in milliseconds, or 0 to wait indefinitely
+     * @return The number of channels whose input was processed
+     */
+    public int poll(long timeoutMillis) throws IOException {
+        try {
+            registerPending();
+            if(wheel != null && (timeoutMillis == 0 || timeoutMillis > wheel.getTickMillis())) {
+                timeoutMillis = wheel.getTickMillis();
+            }
+            selector.select(timeoutMillis);
+            int processed = 0;
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if(key.isValid() && key.isReadable()) {
+                    ((Connection) key.attachment()).read(key);
+                    processed++;
+                }
+            }
+            if(wheel != null) {
+                wheel.advance();
+            }
+            return processed;
+        } catch (ClosedSelectorException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Starts the session for each newly registered channel, and registers it with the selector.
+     * This runs on the driver's thread, since starting a session may schedule a timer on the wheel.
+     */
+    private void registerPending() {
+        Connection connection;
+        while((connection = pending.poll()) != null) {
+            try {
+                connection.start();
+            } catch(RuntimeException e) {
+                // From the context initializer; fails only this connection
+                connection.fail(null, e);
+                continue;
+            }
+            try {
+                connection.channel.configureBlocking(false);
+                connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                connection.fail(null, e);
+            }
+        }
+    }
+
+    /**
+     * Stops processing and closes the selector. Registered channels are left open.
+     */
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+
+    /**
+     * The processing state of a single registered channel. Only the channel and handler are
+     * known until the driver's thread starts the session.
+     */
+    private class Connection {
+        final SelectableChannel channel;
+        final ConnectionHandler<R> handler;
+        Session<Byte, R> session;
+        boolean closed = false;
+
+        Connection(SelectableChannel channel, ConnectionHandler<R> handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        /**
+         * Starts this channel's session; called on the driver's thread
+         */
+        void start() {
+            if(wheel != null) {
+                session = machine.start(item -> handler.onItem(channel, item), wheel);
+                session.setTimeoutListener(this::timedOut);
+            }
+            else {
+                session = machine.start(item -> handler.onItem(channel, item));
+            }
+        }
+
+        private void timedOut(RuntimeException error) {
+            if(!channel.isOpen()) {
+                return;
+            }
+            if(error != null) {
+                fail(channel.keyFor(selector), error);
+            }
+            else if(session.isFailed()) {
+                fail(channel.keyFor(selector), session.failure());
+            }
+        }
+
+        /**
+         * Processes the channel's available input. An unexpected exception, from a custom action
+         * or the handler, fails only this connection rather than escaping from poll().
+         */
+        void read(SelectionKey key) {
+            try {
+                readInput(key);
+            } catch(RuntimeException e) {
+                if(channel.isOpen()) {
+                    fail(key, e);
+                }
+            }
+        }
+
+        private void readInput(SelectionKey key) {
+            int count;
+            try {
+                buffer.clear();
+                count = ((ReadableByteChannel) channel).read(buffer);
+            } catch (IOException e) {
+                fail(key, e);
+                return;
+            }
+
+            if(count < 0) {
+                session.end();  // Also cancels any timer
+                if(session.isFailed()) {
+                    fail(key, session.failure());
+                }
+                else {
+                    close(key);
+                    handler.onEnd(channel);
+                }
+                return;
+            }
+
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                session.feed(buffer.get());
+                if(session.isFailed()) {
+                    fail(key, session.failure());
+                    return;
+                }
+            }
+        }
+
+        void fail(SelectionKey key, Exception e) {
+            if(session != null) {
+                session.cancel();
+            }
+            close(key);
+            handler.onError(channel, e);
+        }
+
+        private void close(SelectionKey key) {
+            if(key != null) {
+                key.cancel();
+            }
+            if(!closed) {
+                closed = true;
+                connections.decrementAndGet();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing useful to do; the connection is finished either way
+            }
+        }
+    }
+}
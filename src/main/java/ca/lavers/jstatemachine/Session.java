@@ -0,0 +1,85 @@
+package ca.lavers.jstatemachine;
+
+import ca.lavers.jstatemachine.streams.StringStream;
+
+import java.util.function.Consumer;
+
+/**
+ * A single in-progress processing operation. Input items are pushed in one at a
+ * time with {@link #feed(Object)}, and any items emitted as a result are handed
+ * straight to the sink the session was created with. Unlike {@link StateMachine#process(TokenStream)},
+ * this never blocks waiting for input, so it is suitable for input that arrives a piece at a time.
+ *
+ * Not meant to be instantiated directly; use {@link StateMachine#start(Consumer)}. A Session is not
+ * thread-safe, but different Sessions of the same StateMachine may be used concurrently.
+ *
+ * @param <T> The type of tokens in the input stream
+ * @param <R> The type of tokens to be returned in the output stream
+ */
+public abstract class Session<T, R> {
+
+    // Called after .after() actions have executed for this session, if set, with any unexpected
+    // exception they threw (rather than letting it escape from TimingWheel.advance())
+    private Consumer<RuntimeException> timeoutListener;
+
+    Session() {}
+
+    void setTimeoutListener(Consumer<RuntimeException> listener) {
+        this.timeoutListener = listener;
+    }
+
+    void timedOut(RuntimeException error) {
+        if(timeoutListener != null) {
+            timeoutListener.accept(error);
+        }
+        else if(error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Process a single input item, emitting any output items to this session's sink.
+     * Does nothing if the session has already failed.
+     */
+    public abstract void feed(T item);
+
+    /**
+     * Signal that there are no more input items; executes the relevant .onEnd() rules.
+     * Does nothing if the session has already failed.
+     */
+    public abstract void end();
+
+    /**
+     * If the current state handles unmatched characters as spans, reads the run of characters up
+     * to the next one that matches a rule straight from the stream and processes them all at once.
+     * Returns false, without reading anything, if that isn't possible or the run would be empty.
+     */
+    boolean feedSpan(StringStream stream) {
+        return false;
+    }
+
+    /**
+     * Makes this session report any failure with a lightweight {@link StateMachineException},
+     * as if the machine had been built with {@link StateMachineBuilder#setLightweightErrors(boolean)}.
+     */
+    void useLightweightErrors() {
+    }
+
+    /**
+     * Abandons this session without executing any .onEnd() rules, cancelling any pending
+     * .after() timer. No further input should be fed to it.
+     */
+    public abstract void cancel();
+
+    /**
+     * Returns the exception that caused processing to fail, or null if it hasn't.
+     */
+    public abstract StateMachineException failure();
+
+    /**
+     * Returns true if processing has failed with an error.
+     */
+    public boolean isFailed() {
+        return failure() != null;
+    }
+}
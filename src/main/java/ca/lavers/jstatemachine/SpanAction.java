@@ -0,0 +1,19 @@
+package ca.lavers.jstatemachine;
+
+/**
+ * An action that handles a run of consecutive input characters at once, rather
+ * than one at a time; see {@link StateMachineBuilder.StateBuilder#otherwiseSpan(SpanAction)}.
+ *
+ * @param <T> The type of tokens in the input stream
+ * @param <R> The type of tokens to be returned in the output stream
+ */
+@FunctionalInterface
+public interface SpanAction<T, R> {
+    /**
+     * Execute this action.
+     * @param ctx The Context object for the current operation
+     * @param span The characters being handled, in input order. This may be a view of the
+     *             input rather than a String; use toString() to compare it with a String
+     */
+    void execute(Context<T, R> ctx, CharSequence span);
+}
@@ -1,6 +1,7 @@
 package ca.lavers.jstatemachine;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A set of rules for a single state in a StateMachine
@@ -10,9 +11,48 @@ class State<T, R> {
     private final List<Rule<T, R>> rules = new ArrayList<>();
     private List<Action<T, R>> otherwiseActions = new ArrayList<>();
     private List<Action<T, R>> endActions = new ArrayList<>();
+    private SpanAction<T, R> spanAction;
+    private char[] spanStops;  // Only set if every rule matches a Character literal
+
+    // The actions executed for an item that matches no rule; the otherwise actions, unless
+    // there is a span action
+    private List<Action<T, R>> unmatchedActions;
+    private long timeoutMillis = -1;
+    private List<Action<T, R>> timeoutActions = new ArrayList<>();
+
+    // Index of the rule to execute for each unsigned byte value (-1 for otherwise);
+    // only present when every rule in this state is a byte literal or byte range
+    private int[] byteTable;
+
+    // The rules in the order they are tested. Unless this state is unordered, this is
+    // just the declaration order; otherwise it is periodically replaced with a new
+    // array sorted by how often each rule has matched. Arrays are never modified once
+    // published here, so a lookup always sees a complete (if possibly stale) order.
+    private volatile Rule<T, R>[] ruleOrder;
+
+    // Adaptive ordering of unordered states; hit counts are indexed by the declaration
+    // index of each rule, and are deliberately unsynchronized since they only need to
+    // be approximately right. Only one match in HIT_SAMPLE_RATE is counted, chosen with a
+    // per-thread random number, so that sessions on different threads rarely write to the
+    // shared counts; the order is recomputed after REORDER_INTERVAL counted matches.
+    static final int HIT_SAMPLE_RATE = 64;
+    static final int REORDER_INTERVAL = 4096 / HIT_SAMPLE_RATE;
+    private boolean unordered = false;
+    private int[] hits;
+    private int untilReorder;
+
+    // Memoization of rule choices for states whose matchers are all pure; when shared, a
+    // single cache is used by every session, otherwise each Context creates its own
+    private int id;
+    private int matchCacheSize;
+    private MatchCache sharedMatchCache;
 
     void addRule(Matcher<T, R> matcher, Action<T, R>[] actions) {
-        rules.add(new Rule<T, R>(matcher, actions));
+        rules.add(new Rule<T, R>(rules.size(), matcher, actions));
+    }
+
+    void setUnordered(boolean unordered) {
+        this.unordered = unordered;
     }
 
     void setOtherwiseActions(Action<T, R>... actions) {
@@ -23,25 +63,267 @@ class State<T, R> {
         this.endActions = Arrays.asList(actions);
     }
 
+    void setSpanAction(SpanAction<T, R> action) {
+        this.spanAction = action;
+    }
+
+    SpanAction<T, R> getSpanAction() {
+        return spanAction;
+    }
+
+    /**
+     * Returns the characters that end a span in this state, or null if spans can't be scanned for
+     */
+    char[] getSpanStops() {
+        return spanStops;
+    }
+
+    void setTimeout(long millis, Action<T, R>... actions) {
+        this.timeoutMillis = millis;
+        this.timeoutActions = Arrays.asList(actions);
+    }
+
+    /**
+     * Returns the delay of this state's .after() rule in milliseconds, or -1 if it doesn't have one
+     */
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    List<Action<T, R>> getTimeoutActions() {
+        return timeoutActions;
+    }
+
+    /**
+     * Called once the StateMachine is built to prepare any lookup tables for this state's rules.
+     *
+     * @param id A number identifying this state, unique within the StateMachine
+     * @param matchCacheSize The number of items to memoize the matching rule for, if possible; 0 to disable
+     * @param sharedMatchCache Whether memoized rules are shared by all sessions or kept per session
+     */
+    @SuppressWarnings("unchecked")
+    void compile(int id, int matchCacheSize, boolean sharedMatchCache) {
+        setId(id);
+        ruleOrder = rules.toArray(new Rule[0]);
+        hits = new int[rules.size()];
+        untilReorder = REORDER_INTERVAL;
+        compileByteTable();
+        compileMatchCache(matchCacheSize, sharedMatchCache);
+        compileSpans();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compileSpans() {
+        spanStops = null;
+        if(spanAction == null) {
+            unmatchedActions = otherwiseActions;
+            return;
+        }
+        // Items that match no rule are handed to the span action one at a time, unless the input
+        // can be scanned for the next item that does match a rule; that's only possible if the
+        // rules are all Character literals. Either way, the action sees no current item and
+        // can't request reprocessing, just as in StateMachine.processSpan()
+        unmatchedActions = Collections.singletonList(ctx -> {
+            String span = String.valueOf(ctx.currentItem());
+            ctx.setCurrentItem(null);
+            spanAction.execute(ctx, span);
+            ctx.takeReprocess();
+        });
+        if(rules.stream().allMatch(r -> r.matcher instanceof LiteralMatcher
+                && ((LiteralMatcher<T, R>) r.matcher).literal instanceof Character)) {
+            spanStops = new char[rules.size()];
+            for(int i = 0; i < spanStops.length; i++) {
+                spanStops[i] = (Character) ((LiteralMatcher<T, R>) rules.get(i).matcher).literal;
+            }
+        }
+    }
+
+    private void compileMatchCache(int size, boolean shared) {
+        this.matchCacheSize = 0;
+        this.sharedMatchCache = null;
+        // Only worthwhile if at least one matcher is more expensive than a literal comparison
+        if(size <= 0 || byteTable != null
+                || rules.stream().noneMatch(r -> r.matcher instanceof PureMatcher)
+                || !rules.stream().allMatch(r -> r.matcher instanceof PureMatcher
+                        || r.matcher instanceof LiteralMatcher || r.matcher instanceof ByteRangeMatcher)) {
+            return;
+        }
+        this.matchCacheSize = size;
+        if(shared) {
+            this.sharedMatchCache = new MatchCache(size);
+        }
+    }
+
+    private void compileByteTable() {
+        byteTable = null;
+        if(rules.isEmpty()) {
+            return;
+        }
+        int[] table = new int[256];
+        Arrays.fill(table, -1);
+        // Walk the rules backwards so earlier rules take precedence, as they would in actionsFor()
+        for(int i = rules.size() - 1; i >= 0; i--) {
+            Matcher<T, R> matcher = rules.get(i).matcher;
+            if(!isByteMatcher(matcher)) {
+                return;
+            }
+            for(int b = 0; b < 256; b++) {
+                if(matchesByte(matcher, b)) {
+                    table[b] = i;
+                }
+            }
+        }
+        byteTable = table;
+    }
+
+    private static boolean isByteMatcher(Matcher<?, ?> matcher) {
+        return matcher instanceof ByteRangeMatcher
+                || (matcher instanceof LiteralMatcher && ((LiteralMatcher<?, ?>) matcher).literal instanceof Byte);
+    }
+
+    private static boolean matchesByte(Matcher<?, ?> matcher, int b) {
+        if(matcher instanceof ByteRangeMatcher) {
+            return ((ByteRangeMatcher<?>) matcher).matches(b);
+        }
+        if(matcher instanceof LiteralMatcher) {
+            Object literal = ((LiteralMatcher<?, ?>) matcher).literal;
+            return literal instanceof Byte && ((Byte) literal & 0xFF) == b;
+        }
+        return false;
+    }
+
     List<Action<T, R>> actionsFor(Context<T, R> ctx) {
-        Optional<Rule<T, R>> rule = rules.stream().filter(r -> r.matches(ctx)).findFirst();
-        if(rule.isPresent()) {
-            return rule.get().actions;
+        if(byteTable != null && ctx.currentItem() instanceof Byte) {
+            int rule = byteTable[(Byte) ctx.currentItem() & 0xFF];
+            return rule >= 0 ? rules.get(rule).actions : unmatchedActions;
+        }
+        if(matchCacheSize > 0 && ctx.currentItem() != null) {
+            MatchCache cache = sharedMatchCache != null ? sharedMatchCache : ctx.matchCache(id, matchCacheSize);
+            int rule = cache.get(ctx.currentItem());
+            if(rule == MatchCache.MISS) {
+                Rule<T, R> match = firstMatch(ctx);
+                rule = match != null ? match.index : -1;
+                cache.put(ctx.currentItem(), rule);
+            }
+            return rule >= 0 ? rules.get(rule).actions : unmatchedActions;
+        }
+
+        Rule<T, R> rule = firstMatch(ctx);
+        return rule != null ? rule.actions : unmatchedActions;
+    }
+
+    private Rule<T, R> firstMatch(Context<T, R> ctx) {
+        for(Rule<T, R> rule : ruleOrder) {
+            if(rule.matches(ctx)) {
+                if(unordered) {
+                    recordHit(rule);
+                }
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private void recordHit(Rule<T, R> rule) {
+        if(ThreadLocalRandom.current().nextInt(HIT_SAMPLE_RATE) != 0) {
+            return;
+        }
+        hits[rule.index]++;
+        if(--untilReorder <= 0) {
+            reorder();
+        }
+    }
+
+    /**
+     * Publishes a new rule order with the most frequently matched rules first, then halves
+     * the hit counts so that the order keeps adapting if the input changes over time.
+     */
+    private synchronized void reorder() {
+        if(untilReorder > 0) {
+            return;  // Another thread got here first
+        }
+        Rule<T, R>[] order = ruleOrder.clone();
+        int[] counts = hits.clone();
+        Arrays.sort(order, (a, b) -> Integer.compare(counts[b.index], counts[a.index]));
+        ruleOrder = order;
+        for(int i = 0; i < hits.length; i++) {
+            hits[i] /= 2;
+        }
+        untilReorder = REORDER_INTERVAL;
+    }
+
+    /**
+     * Returns the declaration indexes of this state's rules in the order they are currently tested.
+     */
+    int[] getRuleOrder() {
+        return Arrays.stream(ruleOrder).mapToInt(r -> r.index).toArray();
+    }
+
+    /**
+     * Replaces the order that rules are tested in, given the declaration index of each rule. Hit
+     * counts are seeded to match, so the order holds until enough real matches outweigh it.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void setRuleOrder(int[] order) {
+        if(!unordered) {
+            throw new IllegalStateException("Rules can only be reordered in an unordered state");
+        }
+        if(order.length != rules.size()
+                || !Arrays.equals(Arrays.stream(order).sorted().toArray(), rules.stream().mapToInt(r -> r.index).toArray())) {
+            throw new IllegalArgumentException("Rule order must contain each rule index exactly once");
+        }
+        Rule<T, R>[] newOrder = new Rule[order.length];
+        for(int i = 0; i < order.length; i++) {
+            newOrder[i] = rules.get(order[i]);
+            hits[order[i]] = order.length - i;
         }
+        ruleOrder = newOrder;
+        untilReorder = REORDER_INTERVAL;
+    }
+
+    boolean isUnordered() {
+        return unordered;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    List<Rule<T, R>> getRules() {
+        return rules;
+    }
 
+    List<Action<T, R>> getOtherwiseActions() {
         return otherwiseActions;
     }
 
-    List<Action<T, R>> getEndActions() {
+    /**
+     * Returns the match cache size this state was compiled with; 0 if it doesn't memoize rules
+     */
+    int getMatchCacheSize() {
+        return matchCacheSize;
+    }
+
+    boolean hasSharedMatchCache() {
+        return sharedMatchCache != null;
+    }
+
+    List<Action<T, R>> getEndActions(Context<T, R> ctx) {
         return endActions;
     }
 }
 
 class Rule<T, R> {
+    public final int index;
     public Matcher<T, R> matcher;
     public List<Action<T, R>> actions;
 
-    Rule(Matcher<T, R> matcher, Action<T, R>[] actions) {
+    Rule(int index, Matcher<T, R> matcher, Action<T, R>[] actions) {
+        this.index = index;
         this.matcher = matcher;
         this.actions = Arrays.asList(actions);
     }
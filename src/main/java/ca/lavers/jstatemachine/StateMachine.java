@@ -1,6 +1,16 @@
 package ca.lavers.jstatemachine;
 
+import ca.lavers.jstatemachine.streams.StringStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * A built state machine, ready to process some streams. Despite the name, instances
@@ -12,114 +22,362 @@ import java.util.*;
  * @param <T> The type of tokens in the input stream
  * @param <R> The type of tokens to be returned in the output stream
  */
-public class StateMachine<T, R> {
+public class StateMachine<T, R> extends StreamProcessor<T, R> {
+
+    // The initializer used when none is supplied; recognized when saving in binary form
+    static final ContextInitializer<?, ?> NO_INITIALIZER = ctx -> {};
 
     private final ContextInitializer<T, R> ctxInit;
     private final Map<String, State<T, R>> states;
     private final String initialState;
+    private final boolean lightweightErrors;
+    private final boolean spans;  // Whether any state can handle unmatched characters as spans
+    private final String[] stateNames;  // Indexed by state ID
 
     /**
      * Used by {@link StateMachineBuilder} to construct a StateMachine
      */
-    StateMachine(Map<String, State<T, R>> states, String initialState, ContextInitializer<T, R> ctxInit) {
+    StateMachine(Map<String, State<T, R>> states, String initialState, ContextInitializer<T, R> ctxInit,
+                 boolean lightweightErrors) {
         this.states = states;
         this.initialState = initialState;
         this.ctxInit = ctxInit;
+        this.lightweightErrors = lightweightErrors;
+        this.spans = states.values().stream().anyMatch(state -> state.getSpanStops() != null);
+        this.stateNames = new String[states.size()];
+        states.forEach((name, state) -> stateNames[state.getId()] = name);
+    }
+
+    /**
+     * Returns the name of the state with the given ID, as assigned when the machine was built.
+     */
+    String stateName(int id) {
+        return stateNames[id];
     }
 
     /**
-     * Begin processing a {@link TokenStream}. Each item read from the input will be
-     * tested against the rules defined in the current state, and any actions
-     * associated with the chosen rule will be executed. Any items emitted by the
-     * state machine will be written to the returned stream.
+     * Returns the ID of the state with the given name.
+     * @throws IllegalStateException if there is no such state
+     */
+    int stateId(String name) {
+        State<T, R> state = states.get(name);
+        if(state == null) {
+            throw new IllegalStateException("No such state: " + name);
+        }
+        return state.getId();
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T, R> ContextInitializer<T, R> noInitializer() {
+        return (ContextInitializer<T, R>) NO_INITIALIZER;
+    }
+
+    /**
+     * Loads a StateMachine previously saved with {@link #writeTo(OutputStream, ActionRegistry)}.
+     * The buffer's position is not changed.
      *
-     * Multiple streams can be processed with the same StateMachine, even concurrently,
-     * as all state for a given operation is contained within the returned stream.
+     * @param buffer The saved machine
+     * @param registry A registry with the custom actions, matchers and context initializer used
+     *                 by the machine, under the same names as when it was saved
+     * @throws IllegalArgumentException if the buffer doesn't contain a saved StateMachine of a
+     *         supported version, is truncated or corrupt, or refers to a name that isn't registered
+     */
+    public static <T, R> StateMachine<T, R> load(ByteBuffer buffer, ActionRegistry<T, R> registry) {
+        return MachineFormat.read(buffer, registry);
+    }
+
+    /**
+     * Loads a StateMachine previously saved with {@link #writeTo(OutputStream, ActionRegistry)}
+     * to a file. The file is memory-mapped rather than read, so loading large machines is fast.
+     *
+     * @param file The file containing the saved machine
+     * @param registry A registry with the custom actions, matchers and context initializer used
+     *                 by the machine, under the same names as when it was saved
+     */
+    public static <T, R> StateMachine<T, R> load(Path file, ActionRegistry<T, R> registry) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), registry);
+        }
+    }
+
+    /**
+     * Saves this StateMachine in a compact, versioned binary form which can be loaded again with
+     * {@link #load(ByteBuffer, ActionRegistry)} or {@link #load(Path, ActionRegistry)}, which is
+     * much faster than building it again. Keyword states are saved already compiled, and the
+     * learned rule order of unordered states is saved too.
+     *
+     * Built-in actions and literal matchers are saved directly; any custom actions, matchers and
+     * context initializer are saved by name, and must be registered in the given registry.
      *
-     * @param stream Stream of input tokens
-     * @return A stream of tokens as emitted by this state machine
-     * @throws StateMachineException when an error(message) action is executed
+     * @param os The stream to write to; it is not closed
+     * @param registry A registry with the custom actions, matchers and context initializer used
+     *                 by this machine
+     * @throws IllegalArgumentException if the machine uses an unregistered custom object, or a
+     *         literal matcher of a type that can't be saved
      */
-    public TokenStream<R> process(TokenStream<T> stream) throws StateMachineException {
-        return new TokenStream<R>() {
-            final Context<T, R> ctx = new Context<>(initialState);
-            final Queue<R> outputBuffer = new LinkedList<>();
-            boolean finished = false;
-
-            { ctxInit.initialize(ctx); }
-
-            private void tryGenerateOutput() {
-                while(!finished && !ctx.isFailed() && outputBuffer.isEmpty()) {
-                    Optional<T> input = stream.next();
-                    if (input.isPresent()) {
-                        outputBuffer.addAll(processItem(ctx, input.get()));
-                    } else {
-                        outputBuffer.addAll(finish(ctx));
-                        finished = true;
+    public void writeTo(OutputStream os, ActionRegistry<T, R> registry) throws IOException {
+        MachineFormat.write(this, registry, os);
+    }
+
+    /**
+     * Saves this StateMachine in binary form to a new ByteBuffer; see {@link #writeTo(OutputStream, ActionRegistry)}.
+     */
+    public ByteBuffer toByteBuffer(ActionRegistry<T, R> registry) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            writeTo(os, registry);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);  // Can't happen with a ByteArrayOutputStream
+        }
+        return ByteBuffer.wrap(os.toByteArray());
+    }
+
+    Map<String, State<T, R>> getStates() {
+        return states;
+    }
+
+    String getInitialState() {
+        return initialState;
+    }
+
+    ContextInitializer<T, R> getContextInitializer() {
+        return ctxInit;
+    }
+
+    boolean hasLightweightErrors() {
+        return lightweightErrors;
+    }
+
+    /**
+     * Returns the order that rules are currently tested in for each state declared with
+     * {@link StateMachineBuilder.StateBuilder#unordered()}, keyed by state name. Each order
+     * is given as the indexes of the state's .on() rules, in the order they were declared.
+     * This can be saved and passed to {@link #importRuleOrder(Map)} on another instance of
+     * the same machine to skip the time it would take to learn the order again.
+     */
+    public Map<String, int[]> exportRuleOrder() {
+        Map<String, int[]> orders = new HashMap<>();
+        states.forEach((name, state) -> {
+            if(state.isUnordered()) {
+                orders.put(name, state.getRuleOrder());
+            }
+        });
+        return orders;
+    }
+
+    /**
+     * Restores rule orders previously saved with {@link #exportRuleOrder()}. This is safe to
+     * call while streams are being processed. The imported orders will continue to adapt
+     * as more input is processed.
+     *
+     * @throws IllegalArgumentException if an order refers to a state that doesn't exist or
+     *         doesn't match the rules declared in that state
+     * @throws IllegalStateException if an order is given for a state that isn't unordered
+     */
+    public void importRuleOrder(Map<String, int[]> orders) {
+        orders.forEach((name, order) -> {
+            State<T, R> state = states.get(name);
+            if(state == null) {
+                throw new IllegalArgumentException("No such state: " + name);
+            }
+            state.setRuleOrder(order);
+        });
+    }
+
+    @Override
+    Session<T, R> newSession(TokenStream<T> input, Consumer<? super R> sink, TimingWheel wheel) {
+        final Context<T, R> ctx = newContext(input, sink);
+        ctxInit.initialize(ctx);
+
+        return new Session<T, R>() {
+            final TimingWheel.Timer timer = wheel == null ? null : new TimingWheel.Timer() {
+                @Override
+                void expire() {
+                    RuntimeException error = null;
+                    if(!ctx.isFailed()) {
+                        try {
+                            timeout(ctx);
+                        } catch(RuntimeException e) {
+                            error = e;
+                        }
+                        armTimer();
                     }
+                    timedOut(error);
+                }
+            };
+
+            // The state whose .after() delay was last looked up, and that delay; states are
+            // compared by identity, so a lookup is only needed when the state actually changes
+            String timedState;
+            long timeout;
+
+            { armTimer(); }
+
+            // Restarts the timer for the current state's .after() rule, if it has one
+            private void armTimer() {
+                if(timer == null) {
+                    return;
+                }
+                String state = ctx.currentState();
+                if(state != timedState) {
+                    timedState = state;
+                    timeout = states.get(state).getTimeoutMillis();
+                }
+                if(timeout >= 0 && !ctx.isFailed()) {
+                    wheel.schedule(timer, timeout);
+                }
+                else {
+                    wheel.cancel(timer);
                 }
             }
 
             @Override
-            public boolean hasNext() {
-                tryGenerateOutput();
-                if(outputBuffer.isEmpty()) {
-                    if(ctx.isFailed()) {
-                        throw ctx.getThrownException();
-                    }
+            public void feed(T item) {
+                if(!ctx.isFailed()) {
+                    processItem(ctx, item);
+                    armTimer();
+                }
+            }
+
+            @Override
+            boolean feedSpan(StringStream stream) {
+                if(!spans || ctx.isFailed()) {
                     return false;
                 }
+                State<T, R> state = states.get(ctx.currentState());
+                if(state.getSpanStops() == null) {
+                    return false;
+                }
+                CharSequence span = stream.nextSpan(state.getSpanStops());
+                if(span.length() == 0) {
+                    return false;
+                }
+                processSpan(ctx, state, span);
+                armTimer();
                 return true;
             }
 
             @Override
-            public Optional<R> next() {
-                tryGenerateOutput();
-                if(outputBuffer.isEmpty()) {
-                    if(ctx.isFailed()) {
-                        throw ctx.getThrownException();
-                    }
-                    return Optional.empty();
+            void useLightweightErrors() {
+                ctx.setLightweightErrors(true);
+            }
+
+            @Override
+            public void end() {
+                cancel();
+                if(!ctx.isFailed()) {
+                    finish(ctx);
                 }
-                return Optional.of(outputBuffer.remove());
+            }
+
+            @Override
+            public void cancel() {
+                if(timer != null) {
+                    wheel.cancel(timer);
+                }
+            }
+
+            @Override
+            public StateMachineException failure() {
+                return ctx.getThrownException();
             }
         };
     }
 
     /**
-     * Process a single input item with the given Context, returning all output items generated.
+     * Creates a Context for a new processing operation, without initializing it.
      */
-    private List<R> processItem(Context<T, R> ctx, T item) throws StateMachineException {
+    Context<T, R> newContext(TokenStream<T> input, Consumer<? super R> sink) {
+        Context<T, R> ctx = new Context<>(initialState, input, sink);
+        ctx.setLightweightErrors(lightweightErrors);
+        return ctx;
+    }
+
+    /**
+     * Process a single input item with the given Context, emitting any generated output items.
+     */
+    void processItem(Context<T, R> ctx, T item) throws StateMachineException {
         ctx.setCurrentItem(item);
         ctx.incrementPosition();
-        State<T, R> state = states.get(ctx.currentState());
         try {
+            dispatch(ctx);
+            while(ctx.nextReplayed()) {
+                dispatch(ctx);
+            }
+        } catch(StateMachineException e) {
+            ctx.setError(e);
+        }
+    }
+
+    /**
+     * Executes the actions chosen by the current state for the current item, until it doesn't
+     * need to be processed again.
+     */
+    private void dispatch(Context<T, R> ctx) {
+        do {
+            State<T, R> state = states.get(ctx.currentState());
             for (Action<T, R> action : state.actionsFor(ctx)) {  // TODO -- state is null if a non-existent one specified
                 action.execute(ctx);
             }
+        } while(ctx.takeReprocess());
+    }
+
+    /**
+     * Process a run of characters that don't match any rule in the given state with its span action.
+     */
+    private void processSpan(Context<T, R> ctx, State<T, R> state, CharSequence span) {
+        ctx.setCurrentItem(null);
+        ctx.advancePosition(span.length());
+        try {
+            state.getSpanAction().execute(ctx, span);
         } catch(StateMachineException e) {
             ctx.setError(e);
         }
-        return ctx.getOutputBufferAndClear();
+        ctx.takeReprocess();  // There is no item to reprocess
     }
 
     /**
-     * Executes the actions in the current state's onEnd() rule, returning all generated output items.
+     * Executes the actions in the current state's .after() rule, emitting any generated output items.
      */
-    private List<R> finish(Context<T, R> ctx) throws StateMachineException {
+    private void timeout(Context<T, R> ctx) {
         ctx.setCurrentItem(null);
-        // TODO - Maybe don't clear position so that emitted items can still have a reasonable position tag (when implemented)
-        ctx.clearPosition();
-        State<T, R> state = states.get(ctx.currentState());
         try {
-            for (Action<T, R> action : state.getEndActions()) {
+            for (Action<T, R> action : states.get(ctx.currentState()).getTimeoutActions()) {
                 action.execute(ctx);
             }
         } catch(StateMachineException e) {
             ctx.setError(e);
         }
-        return ctx.getOutputBufferAndClear();
+        ctx.takeReprocess();  // There is no item to reprocess
     }
 
-
+    /**
+     * Executes the actions in the current state's onEnd() rule, emitting any generated output items.
+     */
+    void finish(Context<T, R> ctx) throws StateMachineException {
+        ctx.setCurrentItem(null);
+        // TODO - Maybe don't clear position so that emitted items can still have a reasonable position tag (when implemented)
+        ctx.clearPosition();
+        try {
+            do {
+                do {
+                    State<T, R> state = states.get(ctx.currentState());
+                    for (Action<T, R> action : state.getEndActions(ctx)) {
+                        action.execute(ctx);
+                    }
+                } while(ctx.takeReprocess());
+                if(!ctx.hasReplayed()) {
+                    break;
+                }
+                // Process any items handed back at the end of the input, then end again
+                while(ctx.nextReplayed()) {
+                    dispatch(ctx);
+                }
+                ctx.setCurrentItem(null);
+                ctx.clearPosition();
+            } while(true);
+        } catch(StateMachineException e) {
+            ctx.setError(e);
+        }
+    }
 }
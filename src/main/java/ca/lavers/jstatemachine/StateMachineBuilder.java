@@ -1,7 +1,7 @@
 package ca.lavers.jstatemachine;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.*;
 
 /**
  * Configures and constructs instances of {@link StateMachine}.
@@ -13,10 +13,13 @@ public class StateMachineBuilder<T, R> {
 
     private Map<String, State<T, R>> states = new HashMap<>();
     private String initialState;
-    private ContextInitializer<T, R> contextInitializer = ctx -> {};
+    private ContextInitializer<T, R> contextInitializer = StateMachine.noInitializer();
+    private int matchCacheSize = 0;
+    private boolean sharedMatchCache = true;
+    private boolean lightweightErrors = false;
 
     // Default MatcherWrapper just checks object equality (via .equals())
-    private MatcherWrapper<T, R> matcherWrapper = m -> (ctx) -> ctx.currentItem().equals(m);
+    private MatcherWrapper<T, R> matcherWrapper = LiteralMatcher::new;
 
     /**
      * Supply a custom wrapper function that will be called to convert each matcher
@@ -47,6 +50,37 @@ public class StateMachineBuilder<T, R> {
         return this;
     }
 
+    /**
+     * Enable memoization of rule matching in states where every .on() rule uses either a
+     * {@link Matcher#pure(java.util.function.Predicate) pure} matcher or a plain literal
+     * (and at least one pure matcher). The rule chosen for each input item is remembered
+     * in a bounded cache for that state, so expensive matchers don't need to be tested
+     * again for items that have been seen recently. When the cache is full, new items
+     * replace older ones. Disabled by default.
+     *
+     * @param capacity The number of items to remember per state; 0 to disable
+     * @param shared If true, one cache per state is shared by all streams processed by the
+     *               StateMachine, even concurrently; if false, each stream gets its own
+     */
+    public StateMachineBuilder<T, R> setMatchCache(int capacity, boolean shared) {
+        this.matchCacheSize = capacity;
+        this.sharedMatchCache = shared;
+        return this;
+    }
+
+    /**
+     * Choose whether errors are reported with lightweight {@link StateMachineException}s,
+     * which have no stack trace and don't keep a reference to the {@link Context}. These
+     * are much cheaper to create, which matters when a large proportion of inputs are
+     * expected to be rejected. Disabled by default.
+     *
+     * @param lightweight True to use lightweight errors
+     */
+    public StateMachineBuilder<T, R> setLightweightErrors(boolean lightweight) {
+        this.lightweightErrors = lightweight;
+        return this;
+    }
+
     /**
      * Start defining a new state. All rule definitions (.on(), .onEnd(), .otherwise()) following this
      * call will apply to this state, until the next .state() call. The first state defined will
@@ -56,12 +90,46 @@ public class StateMachineBuilder<T, R> {
      */
     public StateBuilder state(String name) {
         State<T, R> state = states.computeIfAbsent(name, n -> new State<T, R>());
+        if(state instanceof KeywordState) {
+            throw new IllegalStateException("'" + name + "' is already defined as a keywords state");
+        }
         if(initialState == null) {
             initialState = name;
         }
         return new StateBuilder(state);
     }
 
+    /**
+     * Start defining a keywords state, which matches the input against a set of keywords (fixed
+     * sequences of items) and runs the actions associated with the keyword found. The keywords
+     * are compiled into a compact trie when the StateMachine is built, so very large sets of
+     * keywords are cheap both in memory and to match against.
+     *
+     * Once in this state, each input item extends the current match, and the longest keyword
+     * found wins. When a keyword is matched, its actions run and the machine moves to the match
+     * state; if the input doesn't match any keyword, the fail actions run and the machine moves
+     * to the fail state. A match ends as soon as the next item can't extend it. Any items
+     * after the longest keyword completed along the way, including the one that ended the
+     * match, are then processed again by the match state; if none was completed, every item
+     * consumed, including the one that ended the match, is processed again by the fail state,
+     * and the fail actions can read the items before it from {@link Context#keywordItems()}.
+     * So a fail state that reads identifiers still sees "fox" in full when "for" is a keyword.
+     * If the input ends partway through a match, the match or fail state's .onEnd() rule is
+     * executed after the relevant actions (and after processing any items handed back).
+     *
+     * @param name The name of the new state
+     */
+    public KeywordsBuilder keywords(String name) {
+        State<T, R> state = states.computeIfAbsent(name, n -> new KeywordState<T, R>(n));
+        if(!(state instanceof KeywordState)) {
+            throw new IllegalStateException("'" + name + "' is already defined as a regular state");
+        }
+        if(initialState == null) {
+            initialState = name;
+        }
+        return new KeywordsBuilder((KeywordState<T, R>) state);
+    }
+
     /**
      * Constructs the {@link StateMachine} as configured.
      * @return The new StateMachine
@@ -70,7 +138,11 @@ public class StateMachineBuilder<T, R> {
         // TODO -- Actually clone the states properly. Someone might still have a StateBuilder.
         Map<String, State<T, R>> s = states;
         states = new HashMap<>();
-        return new StateMachine<T, R>(s, initialState, contextInitializer);
+        int id = 0;
+        for(State<T, R> state : s.values()) {
+            state.compile(id++, matchCacheSize, sharedMatchCache);
+        }
+        return new StateMachine<T, R>(s, initialState, contextInitializer, lightweightErrors);
     }
 
     /**
@@ -138,6 +210,49 @@ public class StateMachineBuilder<T, R> {
             return this;
         }
 
+        /**
+         * Define a rule in the current state that handles characters which don't match any
+         * other rule in this state as spans, rather than one at a time. This takes the place
+         * of an .otherwise() rule, for states that consume everything up to one of a few
+         * specific characters, such as a delimiter.
+         *
+         * If every .on() rule in this state matches a Character literal and the input is a
+         * String (see {@link TokenStream#of(String)}), the StateMachine will scan ahead for the
+         * next character that matches a rule, and pass everything before it to the action in
+         * a single call. Otherwise, the action is called for each unmatched character. The
+         * action must therefore give the same results no matter how the characters are split
+         * into spans. During the action, {@link Context#currentItem()} is null and
+         * {@link Context#currentPosition()} is the position of the last character in the span,
+         * and {@link Actions#reprocess()} has no effect, since there is no single item to
+         * process again.
+         *
+         * @param action The action that will be executed for each span of unmatched characters
+         */
+        public StateBuilder otherwiseSpan(SpanAction<T, R> action) {
+            state.setSpanAction(action);
+            return this;
+        }
+
+        /**
+         * Define a rule in the current state that will execute if no input arrives within the
+         * given time while in this state; the time starts again after each input item. If the
+         * actions leave the machine in this state, the rule will execute again after the same
+         * time, which is useful for retransmissions. There may only be one .after() rule per
+         * state; multiple calls will just overwrite the previous.
+         *
+         * These rules only apply to sessions started with a {@link TimingWheel}; see
+         * {@link StateMachine#start(java.util.function.Consumer, TimingWheel)}. They are ignored
+         * by {@link StateMachine#process(TokenStream)}, which blocks while waiting for input.
+         *
+         * @param delay How long to wait for input before executing the actions
+         * @param actions The actions that will be executed, in order, if this rule matches
+         */
+        @SafeVarargs
+        public final StateBuilder after(Duration delay, Action<T, R>... actions) {
+            state.setTimeout(delay.toMillis(), actions);
+            return this;
+        }
+
         /**
          * Define a rule in the current state that will execute if no other rules in this
          * state match. Since this happens after all other rules are considered, it doesn't
@@ -152,6 +267,30 @@ public class StateMachineBuilder<T, R> {
             return this;
         }
 
+        /**
+         * Declare that the .on() rules in this state are mutually exclusive, so that no input
+         * item can match more than one of them and the order they are tested in doesn't
+         * matter. The StateMachine will then keep track of how often each rule matches and
+         * periodically reorder them so that the most frequently matched are tested first.
+         *
+         * The learned order can be saved with {@link StateMachine#exportRuleOrder()} and
+         * restored with {@link StateMachine#importRuleOrder(Map)}.
+         */
+        public StateBuilder unordered() {
+            state.setUnordered(true);
+            return this;
+        }
+
+        /**
+         * Convenience method to begin defining a new keywords state on the parent
+         * {@link StateMachineBuilder} without needing to call {@link #builder()} or keep
+         * a reference to it.
+         * @param name The name of the new state
+         */
+        public KeywordsBuilder keywords(String name) {
+            return StateMachineBuilder.this.keywords(name);
+        }
+
         /**
          * Returns the parent {@link StateMachineBuilder} of this StateBuilder
          */
@@ -179,4 +318,121 @@ public class StateMachineBuilder<T, R> {
         }
     }
 
+    /**
+     * Builder for a keywords state; see {@link StateMachineBuilder#keywords(String)}
+     */
+    public class KeywordsBuilder {
+        private final KeywordState<T, R> state;
+
+        private KeywordsBuilder(KeywordState<T, R> state) {
+            this.state = state;
+        }
+
+        /**
+         * Add a keyword, and the actions that will be executed, in order, when it is matched.
+         * Adding the same keyword again replaces its actions.
+         *
+         * @param keyword The sequence of items making up the keyword
+         * @param actions The actions that will be executed if this keyword matches
+         */
+        @SafeVarargs
+        public final KeywordsBuilder add(List<T> keyword, Action<T, R>... actions) {
+            state.addKeyword(new ArrayList<>(keyword), actions);
+            return this;
+        }
+
+        /**
+         * Add a keyword made of characters, for machines whose input items are Characters.
+         *
+         * @param keyword The characters making up the keyword
+         * @param actions The actions that will be executed if this keyword matches
+         */
+        @SafeVarargs
+        public final KeywordsBuilder add(CharSequence keyword, Action<T, R>... actions) {
+            state.addKeyword(characters(keyword), actions);
+            return this;
+        }
+
+        /**
+         * Add many keywords made of characters which all share the same actions, for machines
+         * whose input items are Characters.
+         *
+         * @param keywords The keywords to add
+         * @param actions The actions that will be executed if any of these keywords match
+         */
+        @SafeVarargs
+        public final KeywordsBuilder addAll(Collection<? extends CharSequence> keywords, Action<T, R>... actions) {
+            List<Action<T, R>> shared = Arrays.asList(actions);
+            for(CharSequence keyword : keywords) {
+                state.addKeyword(characters(keyword), shared);
+            }
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<T> characters(CharSequence keyword) {
+            List<T> items = new ArrayList<>(keyword.length());
+            for(int i = 0; i < keyword.length(); i++) {
+                items.add((T) Character.valueOf(keyword.charAt(i)));
+            }
+            return items;
+        }
+
+        /**
+         * Set the state the machine will move to after a keyword is matched. This may be the
+         * keywords state itself, to match several keywords in a row.
+         *
+         * @param state The name of the state to move to
+         */
+        public KeywordsBuilder onMatch(String state) {
+            this.state.setMatchState(state);
+            return this;
+        }
+
+        /**
+         * Set the state the machine will move to if the input doesn't match any keyword, and the
+         * actions that will be executed, in order, when that happens. This must not be the
+         * keywords state itself.
+         *
+         * @param state The name of the state to move to
+         * @param actions The actions that will be executed if no keyword matches
+         */
+        @SafeVarargs
+        public final KeywordsBuilder onFail(String state, Action<T, R>... actions) {
+            this.state.setFailState(state, actions);
+            return this;
+        }
+
+        /**
+         * Returns the parent {@link StateMachineBuilder} of this KeywordsBuilder
+         */
+        public StateMachineBuilder<T, R> builder() {
+            return StateMachineBuilder.this;
+        }
+
+        /**
+         * Convenience method to begin defining a new state on the parent {@link StateMachineBuilder}
+         * @param name The name of the new state
+         */
+        public StateBuilder state(String name) {
+            return StateMachineBuilder.this.state(name);
+        }
+
+        /**
+         * Convenience method to begin defining a new keywords state on the parent {@link StateMachineBuilder}
+         * @param name The name of the new state
+         */
+        public KeywordsBuilder keywords(String name) {
+            return StateMachineBuilder.this.keywords(name);
+        }
+
+        /**
+         * Convenience method to build the {@link StateMachine} on the parent {@link StateMachineBuilder}
+         * @return The new StateMachine
+         */
+        public StateMachine<T, R> build() {
+            return StateMachineBuilder.this.build();
+        }
+    }
+
 }
\ No newline at end of file
@@ -3,20 +3,41 @@ package ca.lavers.jstatemachine;
 /**
  * Thrown from the output stream's methods when the StateMachine encounters
  * an error(message) action. Includes the original error message, position of
- * the error in the original input stream, and provides access to the Context
- * object at the point of the error.
+ * the error in the original input stream and the state the machine was in, and
+ * provides access to the Context object at the point of the error.
+ *
+ * If the StateMachine was built with {@link StateMachineBuilder#setLightweightErrors(boolean)},
+ * the exception is much cheaper to create: it has no stack trace, and it does not keep a
+ * reference to the Context, so {@link #getContext()} will return null.
  */
 public class StateMachineException extends RuntimeException {
     protected final Context<?, ?> ctx;
     protected String originalMessage;
+    private final int position;
+    private final String state;
 
     public StateMachineException(String message, Context<?, ?> ctx) {
-        // TODO: Needed? If someone wants the position they can get with getPosition()
-        super(message + (ctx.currentPosition() >= 0 ? " at position " + ctx.currentPosition() : ""));
-        this.ctx = ctx;
+        super(message, null, true, !ctx.hasLightweightErrors());
+        this.ctx = ctx.hasLightweightErrors() ? null : ctx;
         this.originalMessage = message;
+        this.position = ctx.currentPosition();
+        this.state = ctx.currentState();
+    }
+
+    /**
+     * Returns the error message, along with the position of the error if there was one.
+     */
+    @Override
+    public String getMessage() {
+        // Built on demand, so that errors that are never printed don't pay for it
+        // TODO: Needed? If someone wants the position they can get with getPosition()
+        return originalMessage + (position >= 0 ? " at position " + position : "");
     }
 
+    /**
+     * Returns the Context at the point of the error, or null if the StateMachine uses
+     * lightweight errors.
+     */
     public Context<?, ?> getContext() {
         return ctx;
     }
@@ -26,6 +47,20 @@ public class StateMachineException extends RuntimeException {
     }
 
     public int getPosition() {
-        return ctx.currentPosition();
+        return position;
+    }
+
+    /**
+     * Returns the name of the state the StateMachine was in when the error occurred.
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * Returns the details of this error as a {@link Failure}.
+     */
+    public Failure toFailure() {
+        return new Failure(originalMessage, position, state, ctx);
     }
 }
@@ -0,0 +1,259 @@
+package ca.lavers.jstatemachine;
+
+import ca.lavers.jstatemachine.streams.ByteTokenStream;
+import ca.lavers.jstatemachine.streams.StringStream;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Something that can process {@link TokenStream}s: either a single {@link StateMachine}, or
+ * several fused together with {@link #then(StreamProcessor)}. All processing is done through
+ * {@link Session}s, so every way of processing input works the same for both.
+ *
+ * Not meant to be subclassed outside this package.
+ *
+ * @param <T> The type of tokens in the input stream
+ * @param <R> The type of tokens to be returned in the output stream
+ */
+public abstract class StreamProcessor<T, R> {
+
+    StreamProcessor() {}
+
+    /**
+     * Begin processing a {@link TokenStream}. Each item read from the input will be
+     * tested against the rules defined in the current state, and any actions
+     * associated with the chosen rule will be executed. Any items emitted by the
+     * state machine will be written to the returned stream.
+     *
+     * Multiple streams can be processed with the same StateMachine, even concurrently,
+     * as all state for a given operation is contained within the returned stream.
+     *
+     * @param stream Stream of input tokens
+     * @return A stream of tokens as emitted by this state machine
+     * @throws StateMachineException when an error(message) action is executed
+     */
+    public TokenStream<R> process(TokenStream<T> stream) throws StateMachineException {
+        return new TokenStream<R>() {
+            final Queue<R> outputBuffer = new ArrayDeque<>();
+            final Session<T, R> session = newSession(stream, outputBuffer::add);
+            boolean finished = false;
+
+            private void tryGenerateOutput() {
+                while(!finished && !session.isFailed() && outputBuffer.isEmpty()) {
+                    finished = !feedNext(stream, session);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                tryGenerateOutput();
+                if(outputBuffer.isEmpty()) {
+                    if(session.isFailed()) {
+                        throw session.failure();
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public Optional<R> next() {
+                tryGenerateOutput();
+                if(outputBuffer.isEmpty()) {
+                    if(session.isFailed()) {
+                        throw session.failure();
+                    }
+                    return Optional.empty();
+                }
+                return Optional.of(outputBuffer.remove());
+            }
+        };
+    }
+
+    /**
+     * Process a {@link TokenStream} to completion, passing each emitted item directly to the
+     * given consumer as soon as it is emitted, rather than buffering it for an output stream.
+     * Since nothing is buffered, memory use stays bounded no matter how many items a single
+     * action emits; the consumer applies backpressure simply by taking its time.
+     *
+     * @param stream Stream of input tokens
+     * @param consumer Function that will receive each emitted item
+     * @throws StateMachineException when an error(message) action is executed
+     */
+    public void process(TokenStream<T> stream, Consumer<? super R> consumer) throws StateMachineException {
+        Session<T, R> session = newSession(stream, consumer);
+        drain(stream, session);
+        if(session.isFailed()) {
+            throw session.failure();
+        }
+    }
+
+    /**
+     * Process a {@link TokenStream} to completion like {@link #process(TokenStream, Consumer)},
+     * but report an error as a returned {@link Failure} rather than by throwing an exception.
+     *
+     * Errors are always recorded as lightweight errors here, even if the machine wasn't built with
+     * {@link StateMachineBuilder#setLightweightErrors(boolean)}, since the exception is never
+     * thrown; rejecting an input costs no stack trace, and the Failure has no Context.
+     *
+     * @param stream Stream of input tokens
+     * @param consumer Function that will receive each emitted item
+     * @return The reason processing halted, or an empty Optional if it completed successfully
+     */
+    public Optional<Failure> tryProcess(TokenStream<T> stream, Consumer<? super R> consumer) {
+        Session<T, R> session = newSession(stream, consumer);
+        session.useLightweightErrors();
+        drain(stream, session);
+        return session.isFailed() ? Optional.of(session.failure().toFailure()) : Optional.empty();
+    }
+
+    /**
+     * Process a {@link TokenStream} to completion as a character transformer, writing the output
+     * to the given Appendable, such as a Writer, StringBuilder or CharBuffer.
+     *
+     * Characters written by actions such as {@link Actions#copy()}, {@link Actions#write(CharSequence)}
+     * and {@link Context#write(char)} are collected in a reusable buffer, which is passed on to the
+     * Appendable in chunks whenever it fills up and once more at the end (even if an error halts
+     * processing), so that output characters aren't passed on one call at a time. Emitted items
+     * are written as their string form. A Writer is not flushed or closed.
+     *
+     * Input items are still fed to the machine as objects. A {@link StringStream} is read without
+     * an Optional per character, but each character is boxed as a Character, which allocates for
+     * characters above 127 unless the JIT can eliminate it; states using
+     * {@link StateMachineBuilder.StateBuilder#otherwiseSpan(SpanAction)} avoid this for runs of
+     * unmatched characters.
+     *
+     * @param stream Stream of input tokens
+     * @param output Where the output characters will be written
+     * @throws StateMachineException when an error(message) action is executed
+     * @throws java.io.UncheckedIOException if writing to the output fails
+     */
+    public void transform(TokenStream<T> stream, Appendable output) throws StateMachineException {
+        transform(stream, output, CharOutput.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Process a {@link TokenStream} to completion as a character transformer, like
+     * {@link #transform(TokenStream, Appendable)}, with an output buffer of the given size.
+     *
+     * @param stream Stream of input tokens
+     * @param output Where the output characters will be written
+     * @param bufferSize The number of characters to collect before writing them to the output
+     * @throws StateMachineException when an error(message) action is executed
+     * @throws java.io.UncheckedIOException if writing to the output fails
+     */
+    public void transform(TokenStream<T> stream, Appendable output, int bufferSize) throws StateMachineException {
+        CharOutput chars = new CharOutput(output, bufferSize);
+        Session<T, R> session = newSession(stream, chars);
+        drain(stream, session);
+        chars.flush();
+        if(session.isFailed()) {
+            throw session.failure();
+        }
+    }
+
+    /**
+     * Feeds every item in the stream to the session and then ends it, stopping early if
+     * processing fails.
+     */
+    private static <T> void drain(TokenStream<T> stream, Session<T, ?> session) {
+        while(!session.isFailed() && feedNext(stream, session)) {
+            // Keep going until the input runs out
+        }
+    }
+
+    /**
+     * Reads the next item from the stream and feeds it to the session, or ends the session if there
+     * are no more items. Returns false once the session has been ended.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> boolean feedNext(TokenStream<T> stream, Session<T, ?> session) {
+        if(stream instanceof StringStream) {
+            if(session.feedSpan((StringStream) stream)) {
+                return true;
+            }
+            // Read an unboxed char, avoiding the Optional allocated by next(); valueOf() still
+            // allocates for characters outside the Character cache (above 127)
+            int c = ((StringStream) stream).nextChar();
+            if(c >= 0) {
+                session.feed((T) Character.valueOf((char) c));
+                return true;
+            }
+        }
+        else if(stream instanceof ByteTokenStream) {
+            // Read an unboxed byte, avoiding the Optional allocated by next()
+            int b = ((ByteTokenStream) stream).nextByte();
+            if(b >= 0) {
+                session.feed((T) Byte.valueOf((byte) b));
+                return true;
+            }
+        }
+        else {
+            Optional<T> input = stream.next();
+            if (input.isPresent()) {
+                session.feed(input.get());
+                return true;
+            }
+        }
+        session.end();
+        return false;
+    }
+
+    /**
+     * Fuses this processor with another one that consumes its output, returning a
+     * single processor that behaves like {@code next.process(this.process(stream))}.
+     *
+     * Rather than passing through an intermediate {@link TokenStream}, each item emitted
+     * by this machine is fed directly into the next one as soon as it is emitted. When
+     * the input ends, the .onEnd() rules of each stage are executed in order. An error
+     * in either stage halts the whole pipeline.
+     *
+     * @param next The processor that will process the output of this one
+     * @return A new processor combining both stages
+     */
+    public <U> StreamProcessor<T, U> then(StreamProcessor<R, U> next) {
+        return new Pipeline<>(this, next);
+    }
+
+    /**
+     * Starts a new push-based processing operation. Rather than reading from an input stream,
+     * items are fed in one at a time through the returned {@link Session}, and any items
+     * emitted by this state machine are passed to the given sink as soon as they are emitted.
+     *
+     * @param sink Function that will receive each emitted item
+     * @return A new Session, ready to be fed input items
+     */
+    public Session<T, R> start(Consumer<? super R> sink) {
+        return newSession(null, sink);
+    }
+
+    /**
+     * Starts a new push-based processing operation as with {@link #start(Consumer)}, which will
+     * also execute the .after() rules of its states when no input arrives in time. Timers are
+     * kept on the given {@link TimingWheel}, which may be shared by any number of sessions fed
+     * from the same thread; the .after() actions will be executed by whichever thread calls
+     * {@link TimingWheel#advance()}.
+     *
+     * @param sink Function that will receive each emitted item
+     * @param wheel The timing wheel that will drive this session's .after() rules
+     * @return A new Session, ready to be fed input items
+     */
+    public Session<T, R> start(Consumer<? super R> sink, TimingWheel wheel) {
+        return newSession(null, sink, wheel);
+    }
+
+    /**
+     * Starts a new processing operation reading from the given input stream (which may be null
+     * if items will be fed from elsewhere), passing any emitted items to the given sink.
+     */
+    Session<T, R> newSession(TokenStream<T> input, Consumer<? super R> sink) {
+        return newSession(input, sink, null);
+    }
+
+    /**
+     * Starts a new processing operation as above, whose .after() rules are driven by the given
+     * timing wheel (if not null).
+     */
+    abstract Session<T, R> newSession(TokenStream<T> input, Consumer<? super R> sink, TimingWheel wheel);
+}
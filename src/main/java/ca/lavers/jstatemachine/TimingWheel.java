@@ -0,0 +1,205 @@
+package ca.lavers.jstatemachine;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A hierarchical timing wheel that drives the .after() rules of any number of
+ * {@link Session}s; see {@link StateMachine#start(java.util.function.Consumer, TimingWheel)}.
+ *
+ * Time is divided into ticks of a fixed length. Each level of the wheel has 64 slots, and
+ * each slot of a level covers 64 times as many ticks as a slot of the level below it. A
+ * timer is placed in the lowest level that can hold its deadline, and is moved down a level
+ * whenever the wheel reaches its slot, until it expires. Scheduling and cancelling are both
+ * O(1), and cost nothing beyond the timer itself, so it's practical to have a timer for every
+ * one of hundreds of thousands of sessions.
+ *
+ * The wheel doesn't watch the time on its own; {@link #advance()} must be called regularly
+ * to expire any timers that are due, and the .after() actions of expired timers are executed
+ * on the calling thread. Since Sessions aren't thread-safe, this should be the same thread
+ * that feeds input to them, and a wheel is not thread-safe either: it can be shared by every
+ * session fed from one thread, but not across threads. {@link SelectorDriver} can do this
+ * automatically.
+ *
+ * The current time is read from a pluggable clock, so that tests can control the passage of
+ * time. The clock is read once per call to {@link #advance()} rather than whenever a timer is
+ * restarted, which would otherwise happen for every input item; deadlines are measured from
+ * the time of the last advance. As long as it is called at least once per tick, timers expire
+ * within a tick of their deadline.
+ */
+public class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = (Long.SIZE + SLOT_BITS - 1) / SLOT_BITS;
+
+    private final LongSupplier clock;
+    private final long tickMillis;
+    private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+    private long now;  // The time in milliseconds as of the last advance
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * Creates a wheel with the given tick length, using the system clock.
+     */
+    public TimingWheel(long tickMillis) {
+        this(System::currentTimeMillis, tickMillis);
+    }
+
+    /**
+     * Creates a wheel with the given tick length and clock.
+     *
+     * @param clock Returns the current time in milliseconds
+     * @param tickMillis The length of a tick in milliseconds
+     */
+    public TimingWheel(LongSupplier clock, long tickMillis) {
+        if(tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick length must be positive");
+        }
+        this.clock = clock;
+        this.tickMillis = tickMillis;
+        this.now = clock.getAsLong();
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Returns the length of a tick in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Returns the number of timers currently scheduled.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reads the clock, and expires every timer whose deadline has passed.
+     */
+    public void advance() {
+        now = clock.getAsLong();
+        long tick = now / tickMillis;
+        while(currentTick < tick) {
+            if(size == 0) {
+                currentTick = tick;
+                return;
+            }
+            tick(currentTick + 1);
+        }
+    }
+
+    private void tick(long tick) {
+        currentTick = tick;
+        // Move timers down from every level whose current slot has just changed, highest first,
+        // so that timers cascading through several levels in one tick end up in the right place.
+        // Timers are taken from a slot one at a time, since expiring one may cancel another;
+        // none can be placed back into the slot being emptied, as their deadlines are later.
+        for(int level = LEVELS - 1; level > 0; level--) {
+            if((tick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                int index = slotIndex(tick, level);
+                Timer timer;
+                while((timer = slots[level][index]) != null) {
+                    unlink(timer);
+                    place(timer);
+                }
+            }
+        }
+        int index = slotIndex(tick, 0);
+        Timer timer;
+        while((timer = slots[0][index]) != null) {
+            unlink(timer);
+            if(timer.deadline > tick) {
+                place(timer);  // Its deadline was pushed back since it was placed
+            }
+            else {
+                timer.scheduled = false;
+                size--;
+                timer.expire();
+            }
+        }
+    }
+
+    private static int slotIndex(long tick, int level) {
+        return (int) (tick >>> (level * SLOT_BITS)) & (SLOTS - 1);
+    }
+
+    /**
+     * Adds a timer to the slot for its deadline: the lowest level at which the deadline
+     * and the current tick differ
+     */
+    private void place(Timer timer) {
+        long deadline = Math.max(timer.deadline, currentTick + 1);
+        int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(deadline ^ currentTick)) / SLOT_BITS;
+        int index = slotIndex(deadline, level);
+        timer.level = level;
+        timer.index = index;
+        timer.placed = deadline;
+        timer.prev = null;
+        timer.next = slots[level][index];
+        if(timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[level][index] = timer;
+    }
+
+    /**
+     * Schedules the timer to expire after the given delay from the last advance, replacing any
+     * previous deadline.
+     */
+    void schedule(Timer timer, long delayMillis) {
+        long deadline = (now + delayMillis + tickMillis - 1) / tickMillis;
+        if(timer.scheduled) {
+            if(deadline >= timer.placed) {
+                // Leave it where it is; if it's reached before the new deadline, it will be placed again
+                timer.deadline = deadline;
+                return;
+            }
+            unlink(timer);
+        }
+        else {
+            timer.scheduled = true;
+            size++;
+        }
+        timer.deadline = deadline;
+        place(timer);
+    }
+
+    /**
+     * Cancels the timer, if it is scheduled.
+     */
+    void cancel(Timer timer) {
+        if(timer.scheduled) {
+            unlink(timer);
+            timer.scheduled = false;
+            size--;
+        }
+    }
+
+    private void unlink(Timer timer) {
+        if(timer.prev != null) {
+            timer.prev.next = timer.next;
+        }
+        else {
+            slots[timer.level][timer.index] = timer.next;
+        }
+        if(timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = timer.next = null;
+    }
+
+    /**
+     * Something that can be scheduled on the wheel; a node in the list of timers for one slot.
+     */
+    abstract static class Timer {
+        private Timer prev, next;
+        private int level, index;
+        private long deadline, placed;
+        private boolean scheduled = false;
+
+        abstract void expire();
+    }
+}
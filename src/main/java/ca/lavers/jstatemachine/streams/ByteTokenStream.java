@@ -0,0 +1,204 @@
+package ca.lavers.jstatemachine.streams;
+
+import ca.lavers.jstatemachine.TokenStream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Optional;
+
+/**
+ * A stream of bytes read from a byte array, a {@link ByteBuffer} or a
+ * {@link ReadableByteChannel}. Bytes can be read individually without boxing
+ * using {@link #nextByte()}, and multi-byte fields can be read directly from
+ * the underlying buffer with the various read methods.
+ *
+ * Arrays and buffers are read in place, without copying; when reading from a
+ * ByteBuffer, its position is advanced as bytes are consumed.
+ */
+public class ByteTokenStream implements TokenStream<Byte> {
+
+    private static final int DEFAULT_CHANNEL_BUFFER_SIZE = 8192;
+
+    private final ByteBuffer buffer;
+    private final ReadableByteChannel channel;
+    private boolean channelEnded = false;
+
+    public ByteTokenStream(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    public ByteTokenStream(byte[] bytes, int offset, int length) {
+        this(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    public ByteTokenStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.channel = null;
+    }
+
+    /**
+     * Creates a stream that reads from the given channel through an internal
+     * direct buffer. Note: the channel is NOT closed automatically when the end
+     * of the stream is reached. Any IOExceptions thrown will be wrapped in
+     * an UncheckedIOException.
+     *
+     * If the channel is non-blocking, a read that returns no bytes is treated as
+     * no more input being available for now: {@link #hasNext()} returns false and
+     * fields can't be read, rather than waiting for more input to arrive.
+     */
+    public ByteTokenStream(ReadableByteChannel channel) {
+        this(channel, DEFAULT_CHANNEL_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a stream that reads from the given channel through an internal
+     * direct buffer of the given size, as above.
+     *
+     * @throws IllegalArgumentException if the buffer can't hold the largest field (8 bytes)
+     */
+    public ByteTokenStream(ReadableByteChannel channel, int bufferSize) {
+        if(bufferSize < Long.BYTES) {
+            throw new IllegalArgumentException("Buffer size " + bufferSize + " is smaller than " + Long.BYTES + " bytes");
+        }
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.buffer.flip();
+        this.channel = channel;
+    }
+
+    /**
+     * Attempts to make at least the given number of bytes available in the buffer,
+     * reading more from the channel if necessary. Returns false if the input ends first,
+     * or if the channel has no more bytes available right now.
+     */
+    private boolean require(int count) {
+        if(channel != null && count > buffer.capacity()) {
+            throw new IllegalArgumentException("Can't read " + count + " bytes at once through a buffer of " + buffer.capacity());
+        }
+        while(buffer.remaining() < count) {
+            if(channel == null || channelEnded) {
+                return false;
+            }
+            buffer.compact();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                buffer.flip();
+            }
+            if(read < 0) {
+                channelEnded = true;
+            }
+            else if(read == 0) {
+                return false;  // Nothing available yet on a non-blocking channel
+            }
+        }
+        return true;
+    }
+
+    private void requireField(int count) {
+        if(!require(count)) {
+            throw new IllegalStateException("Not enough input remaining to read " + count + " bytes");
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return require(1);
+    }
+
+    @Override
+    public Optional<Byte> next() {
+        int b = nextByte();
+        return b >= 0 ? Optional.of((byte) b) : Optional.empty();
+    }
+
+    /**
+     * Returns the next byte in the stream as an unsigned value (0-255), or -1
+     * if there are no more bytes to be read.
+     */
+    public int nextByte() {
+        return require(1) ? buffer.get() & 0xFF : -1;
+    }
+
+    /**
+     * Reads a 16-bit field from the stream in the given byte order.
+     * @throws IllegalStateException if the stream ends before the field does
+     */
+    public short readShort(ByteOrder order) {
+        requireField(Short.BYTES);
+        short v = buffer.getShort();
+        return order == buffer.order() ? v : Short.reverseBytes(v);
+    }
+
+    /**
+     * Reads an unsigned 16-bit field (0-65535) from the stream in the given byte order.
+     * @throws IllegalStateException if the stream ends before the field does
+     */
+    public int readUnsignedShort(ByteOrder order) {
+        return readShort(order) & 0xFFFF;
+    }
+
+    /**
+     * Reads a 32-bit field from the stream in the given byte order.
+     * @throws IllegalStateException if the stream ends before the field does
+     */
+    public int readInt(ByteOrder order) {
+        requireField(Integer.BYTES);
+        int v = buffer.getInt();
+        return order == buffer.order() ? v : Integer.reverseBytes(v);
+    }
+
+    /**
+     * Reads an unsigned 32-bit field (0-4294967295) from the stream in the given byte order.
+     * @throws IllegalStateException if the stream ends before the field does
+     */
+    public long readUnsignedInt(ByteOrder order) {
+        return readInt(order) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Reads a 64-bit field from the stream in the given byte order.
+     * @throws IllegalStateException if the stream ends before the field does
+     */
+    public long readLong(ByteOrder order) {
+        requireField(Long.BYTES);
+        long v = buffer.getLong();
+        return order == buffer.order() ? v : Long.reverseBytes(v);
+    }
+
+    /**
+     * Reads the given number of bytes from the stream. When reading from an array
+     * or buffer, the result is a read-only view of the original bytes rather than a
+     * copy; when reading from a channel the bytes are copied, since the internal
+     * buffer will be reused.
+     * @throws IllegalStateException if the stream ends before the field does
+     * @throws IllegalArgumentException if the count is negative
+     */
+    public ByteBuffer readBytes(int count) {
+        if(count < 0) {
+            throw new IllegalArgumentException("Negative byte count " + count);
+        }
+        ByteBuffer result;
+        if(channel == null) {
+            requireField(count);
+            result = buffer.slice().limit(count).asReadOnlyBuffer();
+            buffer.position(buffer.position() + count);
+        }
+        else {
+            result = ByteBuffer.allocate(count);
+            while(result.hasRemaining()) {
+                requireField(1);
+                int n = Math.min(result.remaining(), buffer.remaining());
+                result.put(buffer.slice().limit(n));
+                buffer.position(buffer.position() + n);
+            }
+            result.flip();
+        }
+        return result;
+    }
+}
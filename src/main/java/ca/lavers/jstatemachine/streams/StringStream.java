@@ -2,6 +2,7 @@ package ca.lavers.jstatemachine.streams;
 
 import ca.lavers.jstatemachine.TokenStream;
 
+import java.nio.CharBuffer;
 import java.util.Optional;
 
 public class StringStream implements TokenStream<Character> {
@@ -18,6 +19,50 @@ public class StringStream implements TokenStream<Character> {
         return string.length() > index;
     }
 
+    /**
+     * Reads the next character, without boxing it or wrapping it in an Optional.
+     *
+     * @return The next character, or -1 at the end of the string
+     */
+    public int nextChar() {
+        return index < string.length() ? string.charAt(index++) : -1;
+    }
+
+    /**
+     * Reads characters up to, but not including, the next one that is in the given set
+     * of stop characters (or the end of the string), and returns them all at once.
+     *
+     * @param stops The characters to stop at
+     * @return A read-only view of the characters read, without copying them; empty if the next
+     *         character is a stop character
+     */
+    public CharSequence nextSpan(char[] stops) {
+        int start = index;
+        int end;
+        if(stops.length == 1) {
+            // String.indexOf() is an intrinsic that scans many characters at a time
+            end = string.indexOf(stops[0], start);
+            if(end < 0) {
+                end = string.length();
+            }
+        }
+        else {
+            end = start;
+            scan:
+            while(end < string.length()) {
+                char c = string.charAt(end);
+                for(char stop : stops) {
+                    if(c == stop) {
+                        break scan;
+                    }
+                }
+                end++;
+            }
+        }
+        index = end;
+        return CharBuffer.wrap(string, start, end);
+    }
+
     @Override
     public Optional<Character> next() {
         if(hasNext()) {
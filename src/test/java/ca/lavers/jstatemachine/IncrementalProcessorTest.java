@@ -0,0 +1,59 @@
+package ca.lavers.jstatemachine;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IncrementalProcessorTest {
+
+    // Emits each space-separated word with its length. The current word is kept in a declared
+    // attribute, and the suffix is set up by the initializer without being declared.
+    private static final StateMachine<Character, String> WORDS = new StateMachineBuilder<Character, String>()
+            .setContextInitializer(ctx -> {
+                ctx.put("word", "");
+                ctx.put("suffix", new StringBuilder(":"));
+            })
+            .state("words")
+                .on(' ', IncrementalProcessorTest::emitWord)
+                .otherwise(ctx -> ctx.put("word", ctx.get("word", String.class) + ctx.currentItem()))
+                .onEnd(IncrementalProcessorTest::emitWord)
+            .build();
+
+    private static void emitWord(Context<Character, String> ctx) {
+        String word = ctx.get("word", String.class);
+        if(!word.isEmpty()) {
+            ctx.emit(word + ctx.get("suffix", StringBuilder.class) + word.length());
+            ctx.put("word", "");
+        }
+    }
+
+    private static List<String> full(String text) {
+        return new IncrementalProcessor<>(WORDS, 4, "word").process(text);
+    }
+
+    @Test
+    public void processRunsContextInitializer() {
+        IncrementalProcessor<String> processor = new IncrementalProcessor<>(WORDS, 4, "word");
+        assertEquals(List.of("one:3", "two:3"), processor.process("one two"));
+    }
+
+    @Test
+    public void editsMatchFullProcessing() {
+        IncrementalProcessor<String> processor = new IncrementalProcessor<>(WORDS, 4, "word");
+        processor.process("the quick brown fox jumps over the lazy dog");
+
+        processor.edit(4, 9, "slow");
+        assertEquals(full("the slow brown fox jumps over the lazy dog"), processor.output());
+
+        processor.edit(0, 0, "see ");
+        assertEquals(full("see the slow brown fox jumps over the lazy dog"), processor.output());
+
+        processor.edit(10, 11, "");
+        assertEquals(full(processor.text().toString()), processor.output());
+
+        processor.edit(processor.text().length(), processor.text().length(), " again");
+        assertEquals(full(processor.text().toString()), processor.output());
+    }
+}
@@ -0,0 +1,164 @@
+package ca.lavers.jstatemachine;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class KeyedStateMachineTest {
+
+    // 'c' counts, 't' toggles between "a" and "b", 'f' finishes, and 'x' is an error
+    private static final StateMachine<Character, String> COUNTER = new StateMachineBuilder<Character, String>()
+            .state("a")
+                .on('t', Actions.state("b"))
+                .on('c', KeyedStateMachineTest::count)
+                .on('f', Actions.state("done"))
+                .on('x', Actions.error("bad event"))
+                .onEnd(KeyedStateMachineTest::total)
+            .state("b")
+                .on('t', Actions.state("a"))
+                .on('c', KeyedStateMachineTest::count)
+                .on('f', Actions.state("done"))
+                .on('x', Actions.error("bad event"))
+                .onEnd(KeyedStateMachineTest::total)
+            .state("done")
+                .onEnd(KeyedStateMachineTest::total)
+            .build();
+
+    private static void count(Context<Character, String> ctx) {
+        Integer n = ctx.get("n", Integer.class);
+        ctx.put("n", n == null ? 1 : n + 1);
+        ctx.emit("n=" + ctx.get("n"));
+    }
+
+    private static void total(Context<Character, String> ctx) {
+        ctx.emit("total=" + (ctx.get("n") == null ? 0 : ctx.get("n")));
+    }
+
+    /**
+     * Records every call made to the handler, as "key:item", "key:end" or "key:error"
+     */
+    private static class Recorder implements EntityHandler<String> {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void onItem(long key, String item) {
+            calls.add(key + ":" + item);
+        }
+
+        @Override
+        public void onEnd(long key) {
+            calls.add(key + ":end");
+        }
+
+        @Override
+        public void onError(long key, StateMachineException e) {
+            assertNull(e.getContext());
+            assertEquals("bad event", e.getOriginalMessage());
+            calls.add(key + ":error");
+        }
+    }
+
+    /**
+     * What an entity should look like according to the model
+     */
+    private static class Entity {
+        String state = "a";
+        int n = 0;
+    }
+
+    @Test
+    public void matchesModelUnderRandomOperations() {
+        Recorder recorder = new Recorder();
+        // A single stripe keeps every entity in one table, so it grows, shrinks and collides the most
+        KeyedStateMachine<Character, String> keyed = new KeyedStateMachine<>(COUNTER, recorder, 1, "n")
+                .setFinalStates("done");
+        Map<Long, Entity> model = new HashMap<>();
+        List<String> expected = new ArrayList<>();
+        Random random = new Random(1234);
+
+        for(int op = 0; op < 200_000; op++) {
+            // Vary the number of live keys over time, so the table both grows and empties again
+            int range = 1 + (op / 5000 % 2 == 0 ? 400 : 20);
+            long key = random.nextInt(range) * 0x9E3779B97F4A7C15L;
+            int choice = random.nextInt(20);
+            Entity entity = model.get(key);
+            if(choice < 14) {
+                char event = "cccct t tfx".charAt(random.nextInt(11));
+                keyed.dispatch(key, event);
+                if(entity == null) {
+                    entity = new Entity();
+                    model.put(key, entity);
+                }
+                switch(event) {
+                    case 'c':
+                        entity.n++;
+                        expected.add(key + ":n=" + entity.n);
+                        break;
+                    case 't':
+                        entity.state = entity.state.equals("a") ? "b" : "a";
+                        break;
+                    case 'f':
+                        model.remove(key);
+                        expected.add(key + ":total=" + entity.n);
+                        expected.add(key + ":end");
+                        break;
+                    case 'x':
+                        model.remove(key);
+                        expected.add(key + ":error");
+                        break;
+                    default:
+                        // Spaces match no rule
+                }
+            }
+            else if(choice < 16) {
+                keyed.end(key);
+                if(entity != null) {
+                    model.remove(key);
+                    expected.add(key + ":total=" + entity.n);
+                    expected.add(key + ":end");
+                }
+            }
+            else if(choice < 18) {
+                assertEquals(entity != null, keyed.evict(key));
+                model.remove(key);
+            }
+            else {
+                assertEquals(entity == null ? null : entity.state, keyed.stateOf(key));
+            }
+            assertEquals(model.size(), keyed.size());
+        }
+
+        assertEquals(expected, recorder.calls);
+        for(Map.Entry<Long, Entity> entry : model.entrySet()) {
+            assertEquals(entry.getValue().state, keyed.stateOf(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void handlerCanDispatchFromCallbacks() {
+        List<String> calls = new ArrayList<>();
+        KeyedStateMachine<Character, String>[] keyed = new KeyedStateMachine[1];
+        keyed[0] = new KeyedStateMachine<>(COUNTER, (key, item) -> {
+            calls.add(key + ":" + item);
+            if(key == 0 && item.equals("n=1")) {
+                // Enough new entities to grow the table while entity 0's event is still being handled
+                for(long k = 1; k <= 40; k++) {
+                    keyed[0].dispatch(k, 'c');
+                }
+                keyed[0].dispatch(0, 't');
+            }
+        }, 1, "n");
+
+        keyed[0].dispatch(0, 'c');
+        keyed[0].dispatch(0, 'c');
+
+        assertEquals(41, keyed[0].size());
+        assertEquals("b", keyed[0].stateOf(0));
+        assertEquals("a", keyed[0].stateOf(40));
+        assertEquals("0:n=1", calls.get(0));
+        assertEquals("1:n=1", calls.get(1));
+        assertEquals("0:n=2", calls.get(calls.size() - 1));
+    }
+}
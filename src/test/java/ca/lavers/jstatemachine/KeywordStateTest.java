@@ -0,0 +1,95 @@
+package ca.lavers.jstatemachine;
+
+import ca.lavers.jstatemachine.streams.StringStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class KeywordStateTest {
+
+    // Emits "kw:<keyword>" for each keyword found, "fail:<consumed>" when none matches, and
+    // each other character on its own
+    private static final StateMachine<Character, String> WORDS = new StateMachineBuilder<Character, String>()
+            .keywords("words")
+                .add("ab", ctx -> ctx.emit("kw:ab"))
+                .add("abcd", ctx -> ctx.emit("kw:abcd"))
+                .add("xyz", ctx -> ctx.emit("kw:xyz"))
+                .onMatch("words")
+                .onFail("other", ctx -> ctx.emit("fail:" + ctx.keywordItems().stream()
+                        .map(String::valueOf).collect(Collectors.joining())))
+            .state("other")
+                .otherwise(ctx -> ctx.emit(String.valueOf(ctx.currentItem())), Actions.state("words"))
+            .build();
+
+    private static List<String> run(String input) {
+        List<String> output = new ArrayList<>();
+        WORDS.process(new StringStream(input), output::add);
+        return output;
+    }
+
+    @Test
+    public void matchesLongestKeyword() {
+        assertEquals(List.of("kw:abcd", "kw:ab"), run("abcdab"));
+    }
+
+    @Test
+    public void fallsBackToShorterKeyword() {
+        assertEquals(List.of("kw:ab", "fail:", "c", "fail:", "q"), run("abcq"));
+    }
+
+    @Test
+    public void fallsBackToShorterKeywordAtEnd() {
+        assertEquals(List.of("kw:ab", "fail:", "c"), run("abc"));
+    }
+
+    @Test
+    public void leftoverItemsCanStartAnotherKeyword() {
+        assertEquals(List.of("kw:ab", "kw:ab"), run("abab"));
+        assertEquals(List.of("kw:ab", "kw:xyz"), run("abxyz"));
+    }
+
+    @Test
+    public void failActionsSeeConsumedItems() {
+        assertEquals(List.of("fail:xy", "x", "fail:", "y", "fail:", "q"), run("xyq"));
+        assertEquals(List.of("fail:xy", "x", "fail:", "y"), run("xy"));
+    }
+
+    // Emits "kw:for" for the keyword, "id:<name>" for any other word, and "items:<count>" from
+    // the identifier state to check that keywordItems() isn't left over from the fail actions
+    private static final StateMachine<Character, String> IDENTIFIERS = new StateMachineBuilder<Character, String>()
+            .keywords("keywords")
+                .add("for", ctx -> ctx.emit("kw:for"))
+                .onMatch("space")
+                .onFail("identifier", ctx -> ctx.put("name", new StringBuilder()))
+            .state("identifier")
+                .on(Matcher.pure(Character::isLetter), ctx -> ctx.get("name", StringBuilder.class).append(ctx.currentItem()))
+                .otherwise(ctx -> ctx.emit("id:" + ctx.get("name")),
+                           ctx -> ctx.emit("items:" + ctx.keywordItems().size()),
+                           Actions.state("keywords"))
+                .onEnd(ctx -> ctx.emit("id:" + ctx.get("name")))
+            .state("space")
+                .on(' ', Actions.state("keywords"))
+            .build();
+
+    private static List<String> identifiers(String input) {
+        List<String> output = new ArrayList<>();
+        IDENTIFIERS.process(new StringStream(input), output::add);
+        return output;
+    }
+
+    @Test
+    public void failStateProcessesConsumedItems() {
+        assertEquals(List.of("id:fox", "items:0", "kw:for"), identifiers("fox for"));
+        assertEquals(List.of("id:fo", "items:0", "kw:for"), identifiers("fo for"));
+    }
+
+    @Test
+    public void failStateProcessesConsumedItemsAtEnd() {
+        assertEquals(List.of("id:fo"), identifiers("fo"));
+        assertEquals(List.of("kw:for", "id:fox"), identifiers("for fox"));
+    }
+}
@@ -0,0 +1,188 @@
+package ca.lavers.jstatemachine;
+
+import ca.lavers.jstatemachine.streams.ByteTokenStream;
+import ca.lavers.jstatemachine.streams.StringStream;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MachineFormatTest {
+
+    private static final Action<Character, String> EMIT = ctx -> ctx.emit(String.valueOf(ctx.currentItem()));
+    private static final SpanAction<Character, String> SPAN = (ctx, span) -> ctx.emit("span:" + span);
+    private static final Matcher<Character, String> DIGIT = Matcher.pure(Character::isDigit);
+    private static final ContextInitializer<Character, String> INIT = ctx -> ctx.put("greeting", "hi");
+
+    private static <T> Action<T, String> emit(String item) {
+        return ctx -> ctx.emit(item);
+    }
+
+    private static final Action<Character, String> IF = emit("kw:if");
+    private static final Action<Character, String> IN = emit("kw:in");
+    private static final Action<Character, String> FAIL = emit("fail");
+    private static final Action<Character, String> IDLE = emit("idle");
+    private static final Action<Character, String> END = ctx -> ctx.emit("end:" + ctx.get("greeting"));
+
+    private static ActionRegistry<Character, String> textRegistry() {
+        return new ActionRegistry<Character, String>()
+                .registerAction("emit", EMIT)
+                .registerAction("if", IF)
+                .registerAction("in", IN)
+                .registerAction("fail", FAIL)
+                .registerAction("idle", IDLE)
+                .registerAction("end", END)
+                .registerSpanAction("span", SPAN)
+                .registerMatcher("digit", DIGIT)
+                .registerContextInitializer("init", INIT);
+    }
+
+    // Uses every kind of state, rule and action that can be saved for a Character machine
+    private static StateMachine<Character, String> text() {
+        return new StateMachineBuilder<Character, String>()
+                .setContextInitializer(INIT)
+                .state("start")
+                    .on('#', Actions.state("keywords"))
+                    .on('[', Actions.state("counts"))
+                    .on('!', Actions.error("bang"))
+                    .otherwiseSpan(SPAN)
+                    .after(Duration.ofMillis(100), IDLE)
+                    .onEnd(END)
+                .keywords("keywords")
+                    .add("if", IF, Actions.state("start"))
+                    .add("in", IN)
+                    .onMatch("start")
+                    .onFail("start", FAIL)
+                .state("counts")
+                    .unordered()
+                    .on('a', EMIT)
+                    .on('b', EMIT)
+                    .on(DIGIT, EMIT)
+                    .on(']', Actions.state("start"))
+                    .otherwise(Actions.drop())
+                .build();
+    }
+
+    private static <T, R> StateMachine<T, R> roundTrip(StateMachine<T, R> machine, ActionRegistry<T, R> registry) {
+        ByteBuffer saved = machine.toByteBuffer(registry);
+        StateMachine<T, R> loaded = StateMachine.load(saved, registry);
+        assertEquals(saved, loaded.toByteBuffer(registry));
+        return loaded;
+    }
+
+    private static List<String> run(StateMachine<Character, String> machine, String input) {
+        List<String> output = new ArrayList<>();
+        machine.process(new StringStream(input), output::add);
+        return output;
+    }
+
+    @Test
+    public void roundTripsRegularAndKeywordStates() {
+        ActionRegistry<Character, String> registry = textRegistry();
+        StateMachine<Character, String> original = text();
+        // Train the unordered state so that its rule order differs from declaration order
+        run(original, "[" + "7".repeat(State.HIT_SAMPLE_RATE * State.REORDER_INTERVAL * 8) + "]");
+        StateMachine<Character, String> loaded = roundTrip(original, registry);
+
+        assertArrayEquals(original.exportRuleOrder().get("counts"), loaded.exportRuleOrder().get("counts"));
+        assertEquals(2, loaded.exportRuleOrder().get("counts")[0]);
+        for(String input : List.of("ab#if cd#in#x[ab3z]", "#i", "[b]xy", "abc")) {
+            assertEquals(input, run(original, input), run(loaded, input));
+        }
+        assertEquals(List.of("span:a", "kw:if", "span:b", "end:hi"), run(loaded, "a#ifb"));
+        assertEquals("bang", loaded.tryProcess(new StringStream("ab!"), out -> {}).get().getMessage());
+    }
+
+    @Test
+    public void roundTripsAfterRules() {
+        StateMachine<Character, String> loaded = roundTrip(text(), textRegistry());
+        long[] now = {0};
+        TimingWheel wheel = new TimingWheel(() -> now[0], 10);
+        List<String> output = new ArrayList<>();
+        loaded.start(output::add, wheel);
+        now[0] = 120;
+        wheel.advance();
+        assertEquals(List.of("idle"), output);
+    }
+
+    @Test
+    public void roundTripsByteRangesAndKeywords() {
+        Action<Byte, String> digit = emit("digit"), cmd12 = emit("cmd:12"), cmd13 = emit("cmd:13"),
+                unknown = emit("unknown");
+        ActionRegistry<Byte, String> registry = new ActionRegistry<Byte, String>()
+                .registerAction("digit", digit)
+                .registerAction("cmd12", cmd12)
+                .registerAction("cmd13", cmd13)
+                .registerAction("unknown", unknown);
+        StateMachine<Byte, String> original = new StateMachineBuilder<Byte, String>()
+                .state("start")
+                    .on(Bytes.range(0x30, 0x39), digit)
+                    .on((byte) 0x7F, Actions.state("command"))
+                    .otherwise(Actions.drop())
+                .keywords("command")
+                    .add(List.of((byte) 1, (byte) 2), cmd12)
+                    .add(List.of((byte) 1, (byte) 3), cmd13)
+                    .onMatch("start")
+                    .onFail("start", unknown)
+                .build();
+        StateMachine<Byte, String> loaded = roundTrip(original, registry);
+
+        byte[] input = { 0x31, 0x7F, 1, 3, 0x32, 0x7F, 9, 0x40 };
+        List<String> expected = new ArrayList<>(), actual = new ArrayList<>();
+        original.process(new ByteTokenStream(input), expected::add);
+        loaded.process(new ByteTokenStream(input), actual::add);
+        assertEquals(List.of("digit", "cmd:13", "digit", "unknown"), expected);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void rejectsTruncatedBuffers() {
+        ActionRegistry<Character, String> registry = textRegistry();
+        ByteBuffer saved = text().toByteBuffer(registry);
+        for(int length = 0; length < saved.limit(); length++) {
+            ByteBuffer truncated = saved.duplicate().limit(length);
+            try {
+                StateMachine.load(truncated, registry);
+                fail("Loaded a machine truncated to " + length + " bytes");
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsCorruptBuffersWithIllegalArgumentException() {
+        ActionRegistry<Character, String> registry = textRegistry();
+        byte[] saved = text().toByteBuffer(registry).array();
+        Random random = new Random(42);
+        for(int i = 0; i < 5000; i++) {
+            byte[] corrupt = saved.clone();
+            for(int j = random.nextInt(3); j >= 0; j--) {
+                corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                StateMachine.load(ByteBuffer.wrap(corrupt), registry);
+            } catch(IllegalArgumentException e) {
+                // Expected for most corruptions; anything else escaping is a bug
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOtherVersions() {
+        ActionRegistry<Character, String> registry = textRegistry();
+        ByteBuffer saved = text().toByteBuffer(registry);
+        saved.putShort(Integer.BYTES, (short) (MachineFormat.VERSION + 1));
+        try {
+            StateMachine.load(saved, registry);
+            fail("Expected IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("version"));
+        }
+    }
+}
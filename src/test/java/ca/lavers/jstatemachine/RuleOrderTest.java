@@ -0,0 +1,118 @@
+package ca.lavers.jstatemachine;
+
+import ca.lavers.jstatemachine.streams.StringStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class RuleOrderTest {
+
+    // Counts the characters 'a', 'b' and 'c' in an unordered state, and ignores anything else
+    private static StateMachine<Character, Character> counter() {
+        return new StateMachineBuilder<Character, Character>()
+                .state("count")
+                    .unordered()
+                    .on('a', ctx -> ctx.emit('a'))
+                    .on('b', ctx -> ctx.emit('b'))
+                    .on('c', ctx -> ctx.emit('c'))
+                    .otherwise(ctx -> {})
+                .state("ordered")
+                    .on('x', Actions.state("count"))
+                .build();
+    }
+
+    private static String repeat(char c, int count) {
+        return String.join("", Collections.nCopies(count, String.valueOf(c)));
+    }
+
+    private static int count(StateMachine<Character, Character> machine, String input, char c) {
+        int[] found = {0};
+        machine.process(new StringStream(input), item -> {
+            if(item == c) {
+                found[0]++;
+            }
+        });
+        return found[0];
+    }
+
+    @Test
+    public void startsInDeclarationOrder() {
+        Map<String, int[]> orders = counter().exportRuleOrder();
+        assertEquals(1, orders.size());  // Only unordered states are exported
+        assertArrayEquals(new int[] { 0, 1, 2 }, orders.get("count"));
+    }
+
+    @Test
+    public void hotRuleMovesToFront() {
+        StateMachine<Character, Character> machine = counter();
+        // Enough matches that the sampled hit counts trigger several reorders
+        int matches = State.HIT_SAMPLE_RATE * State.REORDER_INTERVAL * 8;
+        String input = repeat('c', matches) + "ab";
+        assertEquals(matches, count(machine, input, 'c'));
+        assertEquals(2, machine.exportRuleOrder().get("count")[0]);
+    }
+
+    @Test
+    public void hotRuleMovesToFrontWithConcurrentSessions() throws Exception {
+        StateMachine<Character, Character> machine = counter();
+        int matches = State.HIT_SAMPLE_RATE * State.REORDER_INTERVAL * 4;
+        String input = repeat('b', matches) + "a" + repeat('c', 10);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for(int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> count(machine, input, 'b')));
+            }
+            for(Future<Integer> result : results) {
+                assertEquals(matches, (int) result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, machine.exportRuleOrder().get("count")[0]);
+    }
+
+    @Test
+    public void exportedOrderCanBeImported() {
+        StateMachine<Character, Character> trained = counter();
+        count(trained, repeat('c', State.HIT_SAMPLE_RATE * State.REORDER_INTERVAL * 8), 'c');
+        Map<String, int[]> orders = trained.exportRuleOrder();
+
+        StateMachine<Character, Character> fresh = counter();
+        fresh.importRuleOrder(orders);
+        assertArrayEquals(orders.get("count"), fresh.exportRuleOrder().get("count"));
+
+        // Rules still match the same items in any order
+        assertEquals(3, count(fresh, "acbcxc", 'c'));
+        assertEquals(1, count(fresh, "acbcxc", 'a'));
+    }
+
+    @Test
+    public void importRejectsInvalidOrders() {
+        StateMachine<Character, Character> machine = counter();
+        assertImportFails(machine, Map.of("count", new int[] { 0, 1 }), IllegalArgumentException.class);
+        assertImportFails(machine, Map.of("count", new int[] { 0, 1, 1 }), IllegalArgumentException.class);
+        assertImportFails(machine, Map.of("count", new int[] { 0, 1, 3 }), IllegalArgumentException.class);
+        assertImportFails(machine, Map.of("missing", new int[] { 0 }), IllegalArgumentException.class);
+        assertImportFails(machine, Map.of("ordered", new int[] { 0 }), IllegalStateException.class);
+        assertArrayEquals(new int[] { 0, 1, 2 }, machine.exportRuleOrder().get("count"));
+    }
+
+    private static void assertImportFails(StateMachine<Character, Character> machine, Map<String, int[]> orders,
+                                          Class<? extends RuntimeException> expected) {
+        try {
+            machine.importRuleOrder(orders);
+            fail("Expected " + expected.getSimpleName());
+        } catch(RuntimeException e) {
+            assertEquals(expected, e.getClass());
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package ca.lavers.jstatemachine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class SelectorDriverTest {
+
+    // Emits each line of input, without its newline
+    private static final StateMachine<Byte, String> LINES = new StateMachineBuilder<Byte, String>()
+            .setContextInitializer(ctx -> ctx.put("line", new StringBuilder()))
+            .state("line")
+                .on((byte) '\n', ctx -> {
+                    StringBuilder line = ctx.get("line", StringBuilder.class);
+                    ctx.emit(line.toString());
+                    line.setLength(0);
+                })
+                .otherwise(ctx -> ctx.get("line", StringBuilder.class).append((char) (byte) ctx.currentItem()))
+            .build();
+
+    private ServerSocketChannel server;
+    private SelectorDriver<String> driver;
+    private final List<SocketChannel> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        driver = new SelectorDriver<>(LINES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        driver.close();
+        for(SocketChannel client : clients) {
+            client.close();
+        }
+        server.close();
+    }
+
+    /**
+     * Connects a new client over loopback, registering the server's end with the driver
+     */
+    private SocketChannel connect(ConnectionHandler<String> handler) throws IOException {
+        SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        clients.add(client);
+        driver.register(server.accept(), handler);
+        return client;
+    }
+
+    private static void send(SocketChannel client, String data) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII));
+        while(bytes.hasRemaining()) {
+            client.write(bytes);
+        }
+    }
+
+    private void pollUntil(BooleanSupplier condition) throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the driver", System.currentTimeMillis() < deadline);
+            driver.poll(10);
+        }
+    }
+
+    private static class Recorder implements ConnectionHandler<String> {
+        final List<String> items = new ArrayList<>();
+        boolean ended = false;
+        Exception error;
+
+        @Override
+        public void onItem(SelectableChannel channel, String item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onEnd(SelectableChannel channel) {
+            ended = true;
+        }
+
+        @Override
+        public void onError(SelectableChannel channel, Exception e) {
+            error = e;
+        }
+    }
+
+    @Test
+    public void processesEachConnectionSeparately() throws IOException {
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        SocketChannel clientA = connect(a);
+        SocketChannel clientB = connect(b);
+
+        send(clientA, "one\ntw");
+        send(clientB, "three\n");
+        send(clientA, "o\n");
+        clientA.close();
+        clientB.close();
+        pollUntil(() -> a.ended && b.ended);
+
+        assertEquals(List.of("one", "two"), a.items);
+        assertEquals(List.of("three"), b.items);
+        assertNull(a.error);
+        assertEquals(0, driver.connectionCount());
+    }
+
+    @Test
+    public void handlerExceptionOnlyFailsItsOwnConnection() throws IOException {
+        Recorder good = new Recorder();
+        Recorder bad = new Recorder() {
+            @Override
+            public void onItem(SelectableChannel channel, String item) {
+                throw new IllegalStateException("handler failed");
+            }
+        };
+        SocketChannel goodClient = connect(good);
+        SocketChannel badClient = connect(bad);
+
+        send(badClient, "boom\n");
+        pollUntil(() -> bad.error != null);
+        assertTrue(bad.error instanceof IllegalStateException);
+
+        send(goodClient, "still here\n");
+        goodClient.close();
+        pollUntil(() -> good.ended);
+        assertEquals(List.of("still here"), good.items);
+        assertNull(good.error);
+    }
+
+    @Test
+    public void timeoutExceptionOnlyFailsItsOwnConnection() throws IOException {
+        long[] now = {0};
+        TimingWheel wheel = new TimingWheel(() -> now[0], 10);
+        StateMachine<Byte, String> idle = new StateMachineBuilder<Byte, String>()
+                .state("start")
+                    .on((byte) 'x', Actions.state("waiting"))
+                    .otherwise(ctx -> {})
+                .state("waiting")
+                    .after(Duration.ofMillis(100), ctx -> { throw new IllegalStateException("timeout failed"); })
+                    .otherwise(ctx -> {})
+                .build();
+        driver.close();
+        driver = new SelectorDriver<>(idle, 1024, wheel);
+
+        Recorder waiting = new Recorder();
+        Recorder other = new Recorder();
+        send(connect(waiting), "x");
+        SocketChannel otherClient = connect(other);
+        pollUntil(() -> wheel.size() == 1);
+
+        now[0] += 200;
+        pollUntil(() -> waiting.error != null);
+        assertTrue(waiting.error instanceof IllegalStateException);
+        assertEquals(1, driver.connectionCount());
+
+        otherClient.close();
+        pollUntil(() -> other.ended);
+        assertNull(other.error);
+    }
+
+    @Test
+    public void sessionsStartOnDriverThread() throws Exception {
+        List<Thread> initialized = new ArrayList<>();
+        long[] now = {0};
+        TimingWheel wheel = new TimingWheel(() -> now[0], 10);
+        driver.close();
+        driver = new SelectorDriver<>(new StateMachineBuilder<Byte, String>()
+                .setContextInitializer(ctx -> {
+                    if(initialized.add(Thread.currentThread()) && initialized.size() == 2) {
+                        throw new IllegalStateException("initializer failed");
+                    }
+                })
+                .state("start")
+                    .after(Duration.ofMillis(100), ctx -> ctx.emit("idle"))
+                    .otherwise(ctx -> {})
+                .build(), 1024, wheel);
+
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        clients.add(client);
+        SocketChannel accepted = server.accept();
+        Thread registrar = new Thread(() -> driver.register(accepted, first));
+        registrar.start();
+        registrar.join();
+        assertTrue(initialized.isEmpty());
+
+        connect(second);
+        pollUntil(() -> initialized.size() == 2);
+        assertEquals(List.of(Thread.currentThread(), Thread.currentThread()), initialized);
+        assertEquals(1, wheel.size());
+        assertTrue(second.error instanceof IllegalStateException);
+        assertEquals(1, driver.connectionCount());
+
+        now[0] += 200;
+        pollUntil(() -> !first.items.isEmpty());
+        assertEquals(List.of("idle"), first.items);
+    }
+
+    @Test
+    public void errorActionFailsConnection() throws IOException {
+        SelectorDriver<String> strict = new SelectorDriver<>(new StateMachineBuilder<Byte, String>()
+                .state("start")
+                    .on((byte) 'x', Actions.error("unexpected x"))
+                    .otherwise(ctx -> {})
+                .build());
+        driver.close();
+        driver = strict;
+
+        Recorder recorder = new Recorder();
+        send(connect(recorder), "abcx");
+        pollUntil(() -> recorder.error != null);
+        assertTrue(recorder.error instanceof StateMachineException);
+        assertFalse(recorder.ended);
+    }
+
+    @Test
+    public void fieldReadersFailConnectionClearly() throws IOException {
+        driver.close();
+        driver = new SelectorDriver<>(new StateMachineBuilder<Byte, String>()
+                .state("start")
+                    .otherwise(Bytes.readUnsignedShort("length", ByteOrder.BIG_ENDIAN))
+                .build());
+
+        Recorder recorder = new Recorder();
+        send(connect(recorder), "abc");
+        pollUntil(() -> recorder.error != null);
+        assertTrue(recorder.error instanceof StateMachineException);
+        assertTrue(recorder.error.getMessage().contains("Session"));
+    }
+}
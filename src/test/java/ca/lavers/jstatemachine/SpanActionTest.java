@@ -0,0 +1,48 @@
+package ca.lavers.jstatemachine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class SpanActionTest {
+
+    // Emits each run of text between commas, along with what the span action saw as the
+    // current item, and asks for the span to be reprocessed, which should have no effect
+    private static final StateMachine<Character, String> FIELDS = new StateMachineBuilder<Character, String>()
+            .state("field")
+                .on(',', ctx -> ctx.emit(","))
+                .otherwiseSpan((ctx, span) -> {
+                    ctx.emit(span + "@" + ctx.currentPosition() + ":" + ctx.currentItem());
+                    Actions.<Character, String>reprocess().execute(ctx);
+                })
+            .build();
+
+    // Scanned for spans, since the input is a String
+    private static List<String> scanned(String input) {
+        List<String> output = new ArrayList<>();
+        FIELDS.process(TokenStream.of(input), output::add);
+        return output;
+    }
+
+    // Fed one character at a time, since the input is not a String
+    private static List<String> perCharacter(String input) {
+        List<String> output = new ArrayList<>();
+        List<Character> chars = input.chars().mapToObj(c -> (char) c).collect(Collectors.toList());
+        FIELDS.process(TokenStream.of(chars), output::add);
+        return output;
+    }
+
+    @Test
+    public void scannedSpansSeeNoCurrentItem() {
+        assertEquals(List.of("ab@1:null", ",", "c@3:null"), scanned("ab,c"));
+    }
+
+    @Test
+    public void unscannedSpansSeeNoCurrentItem() {
+        assertEquals(List.of("a@0:null", "b@1:null", ",", "c@3:null"), perCharacter("ab,c"));
+    }
+}
@@ -0,0 +1,163 @@
+package ca.lavers.jstatemachine;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    // Emits "idle" whenever 100ms pass without input, and each input character otherwise
+    private static final StateMachine<Character, String> IDLE = new StateMachineBuilder<Character, String>()
+            .state("waiting")
+                .otherwise(ctx -> ctx.emit(String.valueOf(ctx.currentItem())))
+                .after(Duration.ofMillis(100), ctx -> ctx.emit("idle"))
+            .build();
+
+    private long now = 0;
+    private int clockReads = 0;
+
+    private TimingWheel wheel(long tickMillis) {
+        return new TimingWheel(() -> {
+            clockReads++;
+            return now;
+        }, tickMillis);
+    }
+
+    private static class CountingTimer extends TimingWheel.Timer {
+        int expired = 0;
+
+        @Override
+        void expire() {
+            expired++;
+        }
+    }
+
+    @Test
+    public void timerExpiresWithinATickOfItsDeadline() {
+        TimingWheel wheel = wheel(10);
+        CountingTimer timer = new CountingTimer();
+        wheel.schedule(timer, 100);
+
+        now = 99;
+        wheel.advance();
+        assertEquals(0, timer.expired);
+        now = 109;
+        wheel.advance();
+        assertEquals(1, timer.expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void rescheduleReplacesDeadline() {
+        TimingWheel wheel = wheel(10);
+        CountingTimer timer = new CountingTimer();
+        wheel.schedule(timer, 100);
+        now = 80;
+        wheel.advance();
+        wheel.schedule(timer, 100);
+
+        now = 150;
+        wheel.advance();
+        assertEquals(0, timer.expired);
+        now = 180;
+        wheel.advance();
+        assertEquals(1, timer.expired);
+
+        // An earlier deadline moves the timer forward too
+        wheel.schedule(timer, 1000);
+        wheel.schedule(timer, 20);
+        now = 200;
+        wheel.advance();
+        assertEquals(2, timer.expired);
+    }
+
+    @Test
+    public void cancelledTimerDoesNotExpire() {
+        TimingWheel wheel = wheel(10);
+        CountingTimer timer = new CountingTimer();
+        wheel.schedule(timer, 100);
+        wheel.cancel(timer);
+        assertEquals(0, wheel.size());
+
+        now = 1000;
+        wheel.advance();
+        assertEquals(0, timer.expired);
+    }
+
+    @Test
+    public void longDelaysCascadeThroughLevels() {
+        TimingWheel wheel = wheel(1);
+        CountingTimer near = new CountingTimer();
+        CountingTimer far = new CountingTimer();
+        wheel.schedule(near, 63);
+        wheel.schedule(far, 300_000);
+
+        now = 63;
+        wheel.advance();
+        assertEquals(1, near.expired);
+        now = 299_999;
+        wheel.advance();
+        assertEquals(0, far.expired);
+        now = 300_000;
+        wheel.advance();
+        assertEquals(1, far.expired);
+    }
+
+    @Test
+    public void deadlinesAreMeasuredFromLastAdvance() {
+        TimingWheel wheel = wheel(10);
+        CountingTimer timer = new CountingTimer();
+        now = 500;  // Not seen by the wheel until it advances
+        wheel.schedule(timer, 100);
+        now = 100;
+        wheel.advance();
+        assertEquals(1, timer.expired);
+    }
+
+    @Test
+    public void sessionRunsAfterRuleWhenIdle() {
+        TimingWheel wheel = wheel(10);
+        List<String> output = new ArrayList<>();
+        Session<Character, String> session = IDLE.start(output::add, wheel);
+
+        session.feed('a');
+        now = 90;
+        wheel.advance();
+        session.feed('b');  // Restarts the timer from 90
+        now = 180;
+        wheel.advance();
+        assertEquals(List.of("a", "b"), output);
+
+        now = 190;
+        wheel.advance();
+        assertEquals(List.of("a", "b", "idle"), output);
+
+        // The rule repeats while the machine stays in the state
+        now = 290;
+        wheel.advance();
+        assertEquals(List.of("a", "b", "idle", "idle"), output);
+
+        session.end();
+        now = 1000;
+        wheel.advance();
+        assertEquals(4, output.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void feedingDoesNotReadTheClock() {
+        TimingWheel wheel = wheel(10);
+        Session<Character, String> session = IDLE.start(item -> {}, wheel);
+        int reads = clockReads;
+        for(int i = 0; i < 1000; i++) {
+            session.feed('x');
+        }
+        assertEquals(reads, clockReads);
+        wheel.advance();
+        assertEquals(reads + 1, clockReads);
+    }
+}
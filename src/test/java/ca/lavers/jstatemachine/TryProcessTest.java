@@ -0,0 +1,60 @@
+package ca.lavers.jstatemachine;
+
+import ca.lavers.jstatemachine.streams.StringStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class TryProcessTest {
+
+    // Passes digits through, and rejects anything else; built without lightweight errors
+    private static final StateMachine<Character, Character> DIGITS = new StateMachineBuilder<Character, Character>()
+            .state("digits")
+                .on(Matcher.pure(Character::isDigit), ctx -> ctx.emit(ctx.currentItem()))
+                .otherwise(Actions.error("not a digit"))
+            .build();
+
+    @Test
+    public void acceptsValidInput() {
+        List<Character> output = new ArrayList<>();
+        assertEquals(Optional.empty(), DIGITS.tryProcess(new StringStream("123"), output::add));
+        assertEquals(List.of('1', '2', '3'), output);
+    }
+
+    @Test
+    public void rejectionIsLightweight() {
+        Optional<Failure> failure = DIGITS.tryProcess(new StringStream("12x4"), item -> {});
+        assertTrue(failure.isPresent());
+        assertEquals("not a digit", failure.get().getMessage());
+        assertEquals(2, failure.get().getPosition());
+        assertEquals("digits", failure.get().getState());
+        assertNull(failure.get().getContext());
+    }
+
+    @Test
+    public void processStillThrowsFullErrors() {
+        try {
+            DIGITS.process(new StringStream("12x4"), item -> {});
+            fail("Expected StateMachineException");
+        } catch(StateMachineException e) {
+            assertNotNull(e.getContext());
+            assertTrue(e.getStackTrace().length > 0);
+        }
+    }
+
+    @Test
+    public void rejectionInFusedStageIsLightweight() {
+        StreamProcessor<Character, Character> fused = new StateMachineBuilder<Character, Character>()
+                .state("copy")
+                    .otherwise(ctx -> ctx.emit(ctx.currentItem()))
+                .build()
+                .then(DIGITS);
+        Optional<Failure> failure = fused.tryProcess(new StringStream("1y"), item -> {});
+        assertTrue(failure.isPresent());
+        assertNull(failure.get().getContext());
+    }
+}
@@ -0,0 +1,115 @@
+package ca.lavers.jstatemachine.streams;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.Assert.*;
+
+public class ByteTokenStreamTest {
+
+    private static final byte[] FIELDS = {
+            (byte) 0x9C, 0x40,                      // 40000 as an unsigned short
+            0, 0, 0, 0, 0, 0, 0x01, 0x02,           // 258 as a long
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFE,  // 4294967294 as an unsigned int
+            7
+    };
+
+    private static ReadableByteChannel channel(byte[] bytes) {
+        return Channels.newChannel(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * A channel that returns the given bytes one read at a time, and then has nothing
+     * available, like a non-blocking channel waiting for more input
+     */
+    private static class TrickleChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+        int reads = 0;
+
+        TrickleChannel(byte[] bytes) {
+            this.data = ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            reads++;
+            if(!data.hasRemaining() || !dst.hasRemaining()) {
+                return 0;
+            }
+            dst.put(data.get());
+            return 1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void readFields(ByteTokenStream stream) {
+        assertEquals(40000, stream.readUnsignedShort(ByteOrder.BIG_ENDIAN));
+        assertEquals(258L, stream.readLong(ByteOrder.BIG_ENDIAN));
+        assertEquals(4294967294L, stream.readUnsignedInt(ByteOrder.BIG_ENDIAN));
+        assertEquals(7, stream.nextByte());
+        assertEquals(-1, stream.nextByte());
+        assertFalse(stream.hasNext());
+    }
+
+    @Test
+    public void readsFieldsFromArray() {
+        readFields(new ByteTokenStream(FIELDS));
+    }
+
+    @Test
+    public void readsFieldsAcrossChannelRefills() {
+        // The long straddles the end of the first 8 bytes read
+        readFields(new ByteTokenStream(channel(FIELDS), Long.BYTES));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBufferTooSmallForLongFields() {
+        new ByteTokenStream(channel(FIELDS), Long.BYTES - 1);
+    }
+
+    @Test
+    public void stopsWhenChannelHasNothingAvailable() {
+        TrickleChannel channel = new TrickleChannel(new byte[] { 1, 2 });
+        ByteTokenStream stream = new ByteTokenStream(channel, Long.BYTES);
+        assertEquals(1, stream.nextByte());
+        assertEquals(2, stream.nextByte());
+        assertFalse(stream.hasNext());
+        try {
+            stream.readInt(ByteOrder.BIG_ENDIAN);
+            fail("Expected IllegalStateException");
+        } catch(IllegalStateException e) {
+            // Expected
+        }
+        assertTrue("Should not keep retrying empty reads", channel.reads < 10);
+    }
+
+    @Test
+    public void readBytesIsAViewOfArray() {
+        byte[] bytes = { 1, 2, 3, 4 };
+        ByteTokenStream stream = new ByteTokenStream(bytes);
+        stream.nextByte();
+        ByteBuffer block = stream.readBytes(2);
+        assertEquals(2, block.remaining());
+        assertTrue(block.isReadOnly());
+        assertEquals(2, block.get(0));
+        assertEquals(4, stream.nextByte());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readBytesRejectsNegativeCount() {
+        new ByteTokenStream(new byte[4]).readBytes(-1);
+    }
+}